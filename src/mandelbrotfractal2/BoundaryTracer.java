@@ -0,0 +1,326 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Renders one frame of a PointBasedFractal by tracing the boundaries between
+ * regions of the same (whole) iteration count across the entire screen, and then
+ * filling in the regions without computing them. Only the pixels next to a boundary
+ * are ever computed, so large black areas and wide colored bands cost next to nothing.
+ * It works in two phases. First, the pixels along the edges of the screen and along
+ * a grid of lines every SEED_SPACING pixels are computed. Whenever two neighboring
+ * pixels turn out to be different, the pixels around both of them are computed too,
+ * so the computed pixels spread along every boundary until each one is closed.
+ * Second, each row is scanned from left to right, and every pixel that wasn't computed
+ * takes the value of the pixel to its left, which is inside the same region.
+ * Both phases are split into small pieces of work that the threads of the RenderScheduler
+ * take one at a time (see renderNextPart), so several threads work on the frame at once.
+ * In the first phase each thread follows its own boundaries, and the threads share a bitmap
+ * of claimed pixels, which is updated with compare-and-set rather than a lock so that no
+ * pixel is computed twice. The second phase starts once the last seed line has been followed.
+ * Since a region must have the same value throughout, pixels are colored by their
+ * whole iteration count, so the bands of color aren't smooth like in the normal mode.
+ * Like the Internal Area optimization, a feature can be missed if it is smaller than
+ * the grid and completely surrounded by a single region.
+ * @author Jesse Victors
+ */
+public class BoundaryTracer
+{
+	private static final int SEED_SPACING = 24; //the same size as a Chunk
+	private static final int UNKNOWN = Integer.MIN_VALUE; //the band of a pixel that isn't computed yet
+	private static final int INSIDE_BAND = Integer.MAX_VALUE; //the band of a pixel inside the set
+	private static final int FILL_ROWS = 16; //the rows filled in at a time in the second phase
+	
+	private final PointBasedFractal fractal;
+	private final RenderTarget target;
+	private final FractalViewport viewport;
+	private final int width, height;
+	
+	private AtomicIntegerArray bands; //the whole iteration count of each pixel
+	private AtomicIntegerArray claimedPixels; //one bit per pixel, set by the thread that computes it
+	private AtomicInteger nextSeedLine = new AtomicInteger(), nextFillRow = new AtomicInteger();
+	private AtomicInteger linesInProgress = new AtomicInteger(); //seed lines being followed right now
+	private AtomicInteger filledRows = new AtomicInteger();
+	private final int numOfRowLines, numOfColumnLines;
+	private volatile boolean filling; //set once every boundary has been traced
+	private volatile boolean cancelled;
+	
+	
+	public BoundaryTracer(PointBasedFractal fractal, RenderTarget target, FractalViewport viewport)
+	{
+		this.fractal = fractal;
+		this.target = target;
+		this.viewport = viewport;
+		width = target.getWidth();
+		height = target.getHeight();
+		numOfRowLines = (height - 1) / SEED_SPACING + 2; //including the bottom edge
+		numOfColumnLines = (width - 1) / SEED_SPACING + 2; //including the right edge
+		
+		bands = new AtomicIntegerArray(width * height);
+		for (int j = 0; j < width * height; j++)
+			bands.set(j, UNKNOWN);
+		claimedPixels = new AtomicIntegerArray((width * height + 31) / 32);
+	}
+	
+	
+	
+	/**
+	 * Does the next piece of work: follows the boundaries from one line of seed pixels in the
+	 * first phase, or fills in FILL_ROWS rows in the second. This is called by the threads of
+	 * the RenderScheduler, so any number of threads can work on the frame at once.
+	 * @return false if there is no work to take right now, either because the frame is finished
+	 * or because the first phase is nearly done and its last lines are still being followed
+	 */
+	public boolean renderNextPart()
+	{
+		if (cancelled)
+			return false;
+		if (filling)
+			return fill();
+		
+		linesInProgress.incrementAndGet(); //before taking a line, so the second phase can't start too soon
+		int line = nextSeedLine.getAndIncrement();
+		if (line < numOfRowLines + numOfColumnLines)
+			trace(line);
+		if (linesInProgress.decrementAndGet() == 0 && nextSeedLine.get() >= numOfRowLines + numOfColumnLines)
+			filling = true; //every line has been taken, and none is still being followed
+		
+		return line < numOfRowLines + numOfColumnLines;
+	}
+	
+	
+	
+	/**
+	 * Makes the work in progress give up as soon as possible. The frame is left unfinished.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+	
+	
+	
+	/**
+	 * @return true once the frame has reached the second phase, in which every boundary has been traced
+	 */
+	public boolean isFilling()
+	{
+		return filling;
+	}
+	
+	
+	
+	/**
+	 * @return true once every pixel has been computed or filled in
+	 */
+	public boolean isFinished()
+	{
+		return filledRows.get() >= height;
+	}
+	
+	
+	
+	/**
+	 * The first phase. Follows every boundary found from the given line of seed pixels.
+	 * @param line the index of a row line, or of a column line after all the row lines
+	 */
+	private void trace(int line)
+	{
+		PixelStack stack = new PixelStack();
+		if (line < numOfRowLines)
+		{
+			int y = Math.min(line * SEED_SPACING, height - 1);
+			for (int x = 0; x < width; x++)
+				follow(y * width + x, stack);
+		}
+		else
+		{
+			int x = Math.min((line - numOfRowLines) * SEED_SPACING, width - 1);
+			for (int y = 0; y < height; y++)
+				follow(y * width + x, stack);
+		}
+	}
+	
+	
+	
+	/**
+	 * Computes the given pixel, and then every pixel that turns out to lie along a boundary from it.
+	 */
+	private void follow(int seed, PixelStack stack)
+	{
+		stack.push(seed);
+		while (!stack.isEmpty() && !cancelled)
+		{
+			int pixel = stack.pop();
+			if (!claim(pixel))
+				continue; //another thread got to it first
+			
+			int band = compute(pixel);
+			int x = pixel % width, y = pixel / width;
+			boolean onBoundary = false;
+			if (x > 0)
+				onBoundary |= compareNeighbor(band, pixel - 1, stack);
+			if (x < width - 1)
+				onBoundary |= compareNeighbor(band, pixel + 1, stack);
+			if (y > 0)
+				onBoundary |= compareNeighbor(band, pixel - width, stack);
+			if (y < height - 1)
+				onBoundary |= compareNeighbor(band, pixel + width, stack);
+			
+			if (onBoundary)
+				pushNeighbors(pixel, stack);
+		}
+	}
+	
+	
+	
+	/**
+	 * Checks whether a computed neighbor belongs to a different region. If it does, both pixels
+	 * are on a boundary, so the neighbor's own neighbors are pushed as well. A neighbor still being
+	 * computed by another thread is skipped: that thread does the comparison once it's done.
+	 * @return true if the neighbor is in a different region
+	 */
+	private boolean compareNeighbor(int band, int neighbor, PixelStack stack)
+	{
+		int neighborBand = bands.get(neighbor);
+		if (neighborBand == UNKNOWN || neighborBand == band)
+			return false;
+		
+		pushNeighbors(neighbor, stack);
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Pushes the eight pixels around the given one that haven't been claimed yet.
+	 */
+	private void pushNeighbors(int pixel, PixelStack stack)
+	{
+		int x = pixel % width, y = pixel / width;
+		for (int dy = -1; dy <= 1; dy++)
+		{
+			for (int dx = -1; dx <= 1; dx++)
+			{
+				int nx = x + dx, ny = y + dy;
+				if (nx < 0 || ny < 0 || nx >= width || ny >= height)
+					continue;
+				
+				int neighbor = ny * width + nx;
+				if ((claimedPixels.get(neighbor >> 5) & (1 << (neighbor & 31))) == 0)
+					stack.push(neighbor);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Atomically claims the given pixel for this thread.
+	 * @return false if another thread has already claimed it
+	 */
+	private boolean claim(int pixel)
+	{
+		int word = pixel >> 5, bit = 1 << (pixel & 31);
+		while (true)
+		{
+			int claimed = claimedPixels.get(word);
+			if ((claimed & bit) != 0)
+				return false;
+			if (claimedPixels.compareAndSet(word, claimed, claimed | bit))
+				return true;
+		}
+	}
+	
+	
+	
+	/**
+	 * Computes the given pixel and stores it in the target.
+	 * @return the whole iteration count of the pixel, or INSIDE_BAND
+	 */
+	private int compute(int pixel)
+	{
+		int x = pixel % width, y = pixel / width;
+		float iterations = fractal.getIterationsAt(viewport.convertToFractalLoc(new Point(x, y)));
+		int band = iterations == PointBasedFractal.INSIDE ? INSIDE_BAND : Math.max(0, (int)iterations); //a band of -1 would be stored as INSIDE
+		
+		store(x, y, band);
+		bands.set(pixel, band);
+		return band;
+	}
+	
+	
+	
+	/**
+	 * The second phase. Takes the next FILL_ROWS rows, and fills in every pixel that
+	 * wasn't computed with the value of the pixel to its left.
+	 * The left edge of the screen was always computed in the first phase.
+	 * @return false if there were no rows left to take
+	 */
+	private boolean fill()
+	{
+		int firstRow = nextFillRow.getAndAdd(FILL_ROWS);
+		if (firstRow >= height)
+			return false;
+		
+		int maxY = Math.min(height, firstRow + FILL_ROWS);
+		for (int y = firstRow; y < maxY && !cancelled; y++)
+		{
+			int band = UNKNOWN;
+			for (int x = 0; x < width; x++)
+			{
+				int pixelBand = bands.get(y * width + x);
+				if (pixelBand != UNKNOWN)
+					band = pixelBand;
+				else
+					store(x, y, band);
+			}
+		}
+		
+		filledRows.addAndGet(maxY - firstRow);
+		return true;
+	}
+	
+	
+	
+	private void store(int x, int y, int band)
+	{
+		float iterations = band == INSIDE_BAND ? PointBasedFractal.INSIDE : band;
+		target.setPixel(x, y, iterations, fractal.getRGB(iterations));
+	}
+	
+	
+	
+	/**
+	 * A growable stack of pixel indexes, used by a single thread.
+	 */
+	private static class PixelStack
+	{
+		private int[] pixels = new int[1024];
+		private int size;
+		
+		
+		public void push(int pixel)
+		{
+			if (size == pixels.length)
+				pixels = Arrays.copyOf(pixels, size * 2);
+			pixels[size++] = pixel;
+		}
+		
+		
+		public int pop()
+		{
+			return pixels[--size];
+		}
+		
+		
+		public boolean isEmpty()
+		{
+			return size == 0;
+		}
+	}
+}
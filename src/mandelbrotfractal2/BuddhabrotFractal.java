@@ -0,0 +1,373 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Class to render the Buddhabrot, the density of the orbits of the points outside the
+ * Mandelbrot set. Rather than coloring each pixel by its own point, many points c are
+ * sampled, and every z that the orbit of c passes through is added to a histogram of
+ * the screen. The image therefore keeps improving for as long as samples are taken,
+ * and it is shown progressively through getImage while rendering.
+ * The sampling is done by the threads of the shared RenderScheduler, SAMPLES_PER_CHUNK
+ * samples at a time, so it never uses more threads than there are cores.
+ * Two things keep this fast. First, the samples are taken by one Chain per thread, and every
+ * Chain accumulates into its own histogram, so the threads never contend over shared memory,
+ * and the histograms are only summed when the image is updated. The Chains and their histograms
+ * are kept from view to view and cleared rather than allocated again. Second, the points are
+ * sampled with the Metropolis-Hastings
+ * algorithm: most samples are small mutations of the current point, which are accepted in
+ * proportion to how many of their orbit's points land on the screen. This keeps sampling
+ * the orbits that actually contribute, which matters a great deal when zoomed in. Each orbit
+ * is weighted by the inverse of that number, so the image is the same as with uniform sampling.
+ * The render is complete once SAMPLES_PER_PIXEL samples per pixel have been taken.
+ * @author Jesse Victors
+ */
+public class BuddhabrotFractal extends Fractal implements ChangeListener, RenderScheduler.Renderer
+{
+	private static final int NUM_CHAINS = RenderScheduler.NUM_THREADS; //one for each of the scheduler's threads
+	private static final int SAMPLES_PER_PIXEL = 8;
+	private static final int SAMPLES_PER_CHUNK = 4096; //the samples taken each time a thread takes a Chain
+	private static final double UNIFORM_PROPOSALS = 0.2; //how often a completely new point is tried instead of a mutation
+	private static final double MUTATION_SIZE = 0.01; //relative to the width of the view
+	private static final Rectangle.Double SAMPLE_BOUNDS = new Rectangle.Double(-2, -2, 4, 4); //contains every point whose orbit doesn't escape at once
+	private static final long DISPLAY_INTERVAL = 250; //time between updates of the image, in milliseconds
+	
+	private volatile Frame frame; //the render of the current view
+	private Chain[] chains; //every Chain, whether it is being sampled or not
+	private LinkedBlockingQueue<Chain> idleChains; //the Chains that no thread is sampling right now
+	private float[] density; //the sum of the histograms, guarded by itself
+	private RenderScheduler.Session session; //the connection to the threads that take the samples, or null
+	
+	
+	public BuddhabrotFractal(FractalViewport viewport)
+	{
+		super(viewport);
+		viewport.setChangeListener(this);
+	}
+	
+	
+	
+	public static Rectangle.Double getNormalViewingBounds()
+	{
+		return new Rectangle.Double(-2.2, -1.35, 3.6, 2.7);
+	}
+	
+	
+	
+	/**
+	 * Starts rendering the current view. This returns immediately, since the samples
+	 * are taken by the threads of the shared RenderScheduler. The Chains are created
+	 * the first time this is called, and then kept for every later view.
+	 */
+	@Override
+	public synchronized void startRendering()
+	{
+		if (session == null)
+		{
+			chains = new Chain[NUM_CHAINS];
+			idleChains = new LinkedBlockingQueue<>();
+			for (int j = 0; j < NUM_CHAINS; j++)
+			{
+				chains[j] = new Chain(target.getWidth() * target.getHeight());
+				idleChains.add(chains[j]);
+			}
+			density = new float[target.getWidth() * target.getHeight()];
+			session = RenderScheduler.getShared().register(this, 1);
+		}
+		
+		if (frame != null)
+			frame.cancelled = true;
+		frame = new Frame();
+		session.wakeUp();
+	}
+	
+	
+	
+	/**
+	 * Called by the FractalViewport whenever a user changes something.
+	 * This starts sampling the new view, and the histograms are cleared as the Chains are next taken.
+	 * @param e the ChangeEvent for the state change
+	 */
+	@Override
+	public void stateChanged(ChangeEvent e)
+	{
+		startRendering();
+	}
+	
+	
+	
+	/**
+	 * Removes this fractal from the RenderScheduler, waiting for any samples
+	 * that are being taken to finish.
+	 */
+	@Override
+	public void stopRendering()
+	{
+		RenderScheduler.Session oldSession;
+		synchronized (this)
+		{
+			frame.cancelled = true;
+			oldSession = session;
+			session = null;
+		}
+		
+		if (oldSession != null)
+			oldSession.close(); //not while holding the lock, since the threads may be waiting for it
+	}
+	
+	
+	
+	/**
+	 * Takes an idle Chain and samples SAMPLES_PER_CHUNK points with it for the current view.
+	 * The image is updated every DISPLAY_INTERVAL milliseconds by whichever thread gets there
+	 * first, and one final time by the thread that finishes the last samples of the view.
+	 * @return true if samples were taken, false if the view is complete or no Chain was idle
+	 */
+	@Override
+	public boolean renderNextChunk()
+	{
+		Frame currentFrame = frame;
+		boolean sampled = false;
+		currentFrame.chunksInProgress.incrementAndGet();
+		try
+		{
+			if (currentFrame.cancelled || currentFrame.isSampled())
+				return false;
+			
+			Chain chain = idleChains.poll();
+			if (chain == null)
+				return false; //only when more threads than there are Chains render this fractal
+			try
+			{
+				chain.sample(currentFrame);
+				sampled = true;
+			}
+			finally
+			{
+				idleChains.add(chain);
+			}
+			
+			long now = System.currentTimeMillis();
+			long nextDisplay = currentFrame.nextDisplayTime.get();
+			if (now >= nextDisplay && currentFrame.nextDisplayTime.compareAndSet(nextDisplay, now + DISPLAY_INTERVAL))
+				display(currentFrame);
+			return true;
+		}
+		finally
+		{
+			if (currentFrame.chunksInProgress.decrementAndGet() == 0 && currentFrame.isSampled() &&
+				!currentFrame.cancelled && currentFrame.finishing.compareAndSet(false, true))
+			{ //every sample has been taken and no thread is still adding to the histograms
+				display(currentFrame);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Sums the histograms of every Chain that is sampling the given Frame and draws the result to the target.
+	 * The histograms are still being written to while rendering, so the sum may miss
+	 * the latest few orbits, which is fine for showing progress.
+	 */
+	private void display(Frame currentFrame)
+	{
+		synchronized (density)
+		{
+			Arrays.fill(density, 0);
+			for (Chain chain : chains)
+			{
+				if (chain.sampledFrame != currentFrame)
+					continue; //the Chain hasn't been taken since the view changed, so it holds an older view
+				float[] histogram = chain.histogram;
+				for (int j = 0; j < density.length; j++)
+					density[j] += histogram[j];
+			}
+			
+			float maxDensity = 0;
+			for (float value : density)
+				maxDensity = Math.max(maxDensity, value);
+			
+			if (maxDensity == 0 || currentFrame.cancelled)
+				return; //nothing to show yet, or a newer Frame has taken over
+			
+			int width = target.getWidth(), height = target.getHeight();
+			double coloring = viewport.getColoring();
+			for (int y = 0; y < height; y++)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					float value = density[y * width + x];
+					float brightness = (float)Math.min(1, value / maxDensity * coloring);
+					int red = (int)(brightness * brightness * 255 + 0.5);
+					int green = (int)(brightness * 255 + 0.5);
+					int blue = (int)(Math.sqrt(brightness) * 255 + 0.5);
+					target.setPixel(x, y, value, (red << 16) | (green << 8) | blue);
+				}
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * The render of a single view. The view is copied when the Frame is created,
+	 * so the Chains aren't affected by any later changes to the viewport.
+	 */
+	private class Frame
+	{
+		private final FractalViewport frameViewport = new FractalViewport(viewport, viewport.getScreenSize());
+		private final int maxIterations = viewport.getMaxIterations();
+		private final int width = target.getWidth(), height = target.getHeight();
+		
+		private AtomicLong samples = new AtomicLong(); //the samples taken over every Chain
+		private AtomicInteger chunksInProgress = new AtomicInteger(); //the threads working on this Frame right now
+		private AtomicLong nextDisplayTime = new AtomicLong(System.currentTimeMillis() + DISPLAY_INTERVAL);
+		private AtomicBoolean finishing = new AtomicBoolean(); //set by the thread that draws the final image
+		private volatile boolean cancelled;
+		
+		
+		
+		/**
+		 * @return true once SAMPLES_PER_PIXEL samples per pixel have been taken
+		 */
+		public boolean isSampled()
+		{
+			return samples.get() >= (long)SAMPLES_PER_PIXEL * width * height;
+		}
+		
+		
+		
+		/**
+		 * Iterates the given point and records the screen pixels that its orbit passes through.
+		 * @param cx the real part of the point
+		 * @param cy the imaginary part of the point
+		 * @param orbit receives the index of every pixel the orbit passed through
+		 * @return the number of pixels recorded, or 0 if the point never escaped
+		 */
+		private int traceOrbit(double cx, double cy, int[] orbit)
+		{
+			double cySq = cy * cy;
+			double xOff = cx - 0.25;
+			double q = xOff * xOff + cySq;
+			if (q * (q + xOff) < cySq / 4 || (cx + 1) * (cx + 1) + cySq < 1 / 16.0)
+				return 0; //inside the main cardioid or the period-2 bulb, so it never escapes
+			
+			double x = 0, xSq = 0, y = 0, ySq = 0;
+			int length = 0;
+			for (int iterations = 0; iterations < maxIterations; iterations++)
+			{
+				y = 2 * x * y + cy;
+				x = xSq - ySq + cx;
+				xSq = x * x;
+				ySq = y * y;
+				if (xSq + ySq > 4)
+					return length;
+				
+				Point.Double screenLoc = frameViewport.convertToScreenLoc(new Point.Double(x, y));
+				int screenX = (int)Math.floor(screenLoc.x);
+				int screenY = (int)Math.floor(screenLoc.y);
+				if (screenX >= 0 && screenY >= 0 && screenX < width && screenY < height)
+					orbit[length++] = screenY * width + screenX;
+			}
+			
+			return 0;
+		}
+	}
+	
+	
+	
+	/**
+	 * A Metropolis-Hastings chain, along with the histogram it accumulates into. Only one
+	 * thread samples a Chain at a time, so its state carries over from one chunk to the next.
+	 */
+	private class Chain
+	{
+		private final float[] histogram;
+		private final Random random = new Random();
+		private volatile Frame sampledFrame; //the Frame that the histogram and the current point belong to
+		private int[] orbit = new int[0], proposedOrbit = new int[0];
+		private double cx, cy;
+		private int length; //the number of points of the current orbit on the screen
+		
+		
+		
+		public Chain(int numOfPixels)
+		{
+			histogram = new float[numOfPixels];
+		}
+		
+		
+		
+		/**
+		 * Runs the chain for SAMPLES_PER_CHUNK samples of the given Frame, adding every sample
+		 * to the histogram. If the Frame is new to this Chain, the histogram is cleared first.
+		 * @param currentFrame the Frame to sample
+		 */
+		public void sample(Frame currentFrame)
+		{
+			if (sampledFrame != currentFrame)
+			{
+				Arrays.fill(histogram, 0);
+				if (orbit.length != currentFrame.maxIterations)
+				{
+					orbit = new int[currentFrame.maxIterations];
+					proposedOrbit = new int[currentFrame.maxIterations];
+				}
+				length = 0;
+				sampledFrame = currentFrame; //only once the histogram is cleared, since display checks it
+			}
+			
+			double mutationSize = MUTATION_SIZE * currentFrame.frameViewport.getFractalViewport().width;
+			for (int attempts = 0; length == 0 && attempts < SAMPLES_PER_CHUNK && !currentFrame.cancelled; attempts++)
+			{ //find a starting point that contributes something
+				cx = SAMPLE_BOUNDS.x + random.nextDouble() * SAMPLE_BOUNDS.width;
+				cy = SAMPLE_BOUNDS.y + random.nextDouble() * SAMPLE_BOUNDS.height;
+				length = currentFrame.traceOrbit(cx, cy, orbit);
+			}
+			
+			long samplesTaken;
+			for (samplesTaken = 0; samplesTaken < SAMPLES_PER_CHUNK && length > 0 && !currentFrame.cancelled; samplesTaken++)
+			{
+				double px, py;
+				if (random.nextDouble() < UNIFORM_PROPOSALS)
+				{
+					px = SAMPLE_BOUNDS.x + random.nextDouble() * SAMPLE_BOUNDS.width;
+					py = SAMPLE_BOUNDS.y + random.nextDouble() * SAMPLE_BOUNDS.height;
+				}
+				else
+				{
+					px = cx + random.nextGaussian() * mutationSize;
+					py = cy + random.nextGaussian() * mutationSize;
+				}
+				
+				int proposedLength = SAMPLE_BOUNDS.contains(px, py) ? currentFrame.traceOrbit(px, py, proposedOrbit) : 0;
+				if (proposedLength > 0 && random.nextDouble() * length < proposedLength)
+				{ //accept
+					int[] swap = orbit;
+					orbit = proposedOrbit;
+					proposedOrbit = swap;
+					length = proposedLength;
+					cx = px;
+					cy = py;
+				}
+				
+				float weight = 1f / length;
+				for (int j = 0; j < length; j++)
+					histogram[orbit[j]] += weight;
+			}
+			
+			currentFrame.samples.addAndGet(samplesTaken);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Point;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of how expensive each chunk of the screen is to render, so that the
+ * most expensive chunks can be started first and the rendering threads all finish
+ * at about the same time. Each finished chunk records how many iterations it computed,
+ * split between points that escaped and points inside the set, and how long it took.
+ * Points inside the set don't all cost maxIterations: those caught by the main bulb
+ * check cost almost nothing. So the time that each chunk took is used to calibrate
+ * what its inside points really cost, in iterations, against the time per iteration
+ * measured on chunks that have no inside points at all.
+ * When the view changes, every new chunk inherits the cost of the old chunk that
+ * covered the same part of the fractal. The iterations spent inside the set are
+ * scaled by the change in maxIterations, since those points always run to the limit.
+ * @author Jesse Victors
+ */
+public class ChunkCosts
+{
+	private final int numOfChunksW, numOfChunksH, chunkSize;
+	private AtomicLongArray escapedIterations, insidePixels; //the cost of each chunk, -1 if unknown
+	private AtomicLongArray insideIterations; //the calibrated cost of the inside points of each chunk, -1 if it wasn't timed
+	private final AtomicLong timedNanos = new AtomicLong(), timedIterations = new AtomicLong(); //over the chunks with no inside points, in every frame
+	private final AtomicLong calibratedInside = new AtomicLong(), nominalInside = new AtomicLong(); //the calibrated and the maxIterations cost of inside points, in every frame
+	
+	private FractalViewport frameViewport; //a copy of the viewport that the costs are for
+	
+	
+	public ChunkCosts(int numOfChunksW, int numOfChunksH, int chunkSize)
+	{
+		this.numOfChunksW = numOfChunksW;
+		this.numOfChunksH = numOfChunksH;
+		this.chunkSize = chunkSize;
+		
+		int numOfChunks = numOfChunksW * numOfChunksH;
+		escapedIterations = new AtomicLongArray(numOfChunks);
+		insidePixels = new AtomicLongArray(numOfChunks);
+		insideIterations = new AtomicLongArray(numOfChunks);
+		for (int j = 0; j < numOfChunks; j++)
+		{
+			escapedIterations.set(j, -1);
+			insidePixels.set(j, -1);
+			insideIterations.set(j, -1);
+		}
+	}
+	
+	
+	
+	/**
+	 * Starts a new frame, carrying the costs of the previous frame over to the chunks
+	 * that now cover the same locations. Chunks that cover parts of the fractal that
+	 * weren't visible in the previous frame have an unknown cost. Calibrated costs of
+	 * inside points are scaled by the change in maxIterations.
+	 * @param viewport the viewport for the new frame
+	 */
+	public synchronized void startFrame(FractalViewport viewport)
+	{
+		int numOfChunks = numOfChunksW * numOfChunksH;
+		AtomicLongArray newEscaped = new AtomicLongArray(numOfChunks), newInside = new AtomicLongArray(numOfChunks);
+		AtomicLongArray newInsideIterations = new AtomicLongArray(numOfChunks);
+		
+		Point center = new Point();
+		for (int j = 0; j < numOfChunksW; j++)
+		{
+			for (int k = 0; k < numOfChunksH; k++)
+			{
+				int index = j * numOfChunksH + k;
+				newEscaped.set(index, -1);
+				newInside.set(index, -1);
+				newInsideIterations.set(index, -1);
+				if (frameViewport == null)
+					continue;
+				
+				center.setLocation(j * chunkSize + chunkSize / 2, k * chunkSize + chunkSize / 2);
+				Point.Double oldCenter = frameViewport.convertToScreenLoc(viewport.convertToFractalLoc(center));
+				int oldJ = (int)Math.floor(oldCenter.x) / chunkSize;
+				int oldK = (int)Math.floor(oldCenter.y) / chunkSize;
+				if (oldCenter.x < 0 || oldCenter.y < 0 || oldJ >= numOfChunksW || oldK >= numOfChunksH)
+					continue;
+				
+				newEscaped.set(index, escapedIterations.get(oldJ * numOfChunksH + oldK));
+				newInside.set(index, insidePixels.get(oldJ * numOfChunksH + oldK));
+				long calibrated = insideIterations.get(oldJ * numOfChunksH + oldK);
+				if (calibrated >= 0)
+					newInsideIterations.set(index, calibrated * viewport.getMaxIterations() / frameViewport.getMaxIterations());
+			}
+		}
+		
+		escapedIterations = newEscaped;
+		insidePixels = newInside;
+		insideIterations = newInsideIterations;
+		
+		frameViewport = new FractalViewport(viewport, viewport.getScreenSize());
+	}
+	
+	
+	
+	/**
+	 * Replaces the estimated cost of a chunk that hasn't been rendered yet in this frame.
+	 * @param index the index of the chunk
+	 * @param escaped the estimated iterations for points that escape
+	 * @param inside the estimated number of points inside the set that will be computed
+	 */
+	public void setEstimate(int index, long escaped, long inside)
+	{
+		escapedIterations.set(index, escaped);
+		insidePixels.set(index, inside);
+		insideIterations.set(index, -1);
+	}
+	
+	
+	
+	/**
+	 * Records the measured cost of a chunk that was just rendered.
+	 * @param index the index of the chunk
+	 * @param escaped the number of iterations computed for points that escaped
+	 * @param inside the number of points computed that were inside the set
+	 * @param elapsedNanos how long it took to render the chunk
+	 */
+	public void record(int index, long escaped, long inside, long elapsedNanos)
+	{
+		escapedIterations.set(index, escaped);
+		insidePixels.set(index, inside);
+		insideIterations.set(index, -1);
+		if (inside == 0)
+		{
+			timedNanos.addAndGet(elapsedNanos);
+			timedIterations.addAndGet(escaped);
+			return;
+		}
+		
+		long iterations = timedIterations.get();
+		if (iterations == 0)
+			return; //nothing to calibrate against yet
+		
+		double nanosPerIteration = timedNanos.get() / (double)iterations;
+		long nominal = inside * frameViewport.getMaxIterations();
+		long calibrated = Math.max(0, Math.min(nominal, Math.round(elapsedNanos / nanosPerIteration) - escaped));
+		insideIterations.set(index, calibrated);
+		calibratedInside.addAndGet(calibrated);
+		nominalInside.addAndGet(nominal);
+	}
+	
+	
+	
+	/**
+	 * Estimates the cost of a chunk. If the chunk's inside points weren't timed, they
+	 * are charged maxIterations each, scaled down by the calibration over every chunk
+	 * timed so far.
+	 * @return the estimated cost of the given chunk in iterations, or -1 if it is unknown
+	 */
+	public long getEstimate(int index)
+	{
+		long escaped = escapedIterations.get(index), inside = insidePixels.get(index);
+		if (escaped < 0)
+			return -1;
+		
+		long calibrated = insideIterations.get(index);
+		if (calibrated >= 0)
+			return escaped + calibrated;
+		
+		long nominal = inside * frameViewport.getMaxIterations(), totalNominal = nominalInside.get();
+		if (totalNominal == 0)
+			return escaped + nominal;
+		return escaped + Math.round(nominal * (calibratedInside.get() / (double)totalNominal));
+	}
+}
@@ -1,7 +1,9 @@
 
 package mandelbrotfractal2;
 
+import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.image.BufferedImage;
 import javax.swing.JPanel;
 
 /**
@@ -13,8 +15,9 @@ import javax.swing.JPanel;
  */
 public class DrawPanel extends JPanel implements Runnable
 {
-	private Fractal fractal; 
+	private volatile Fractal fractal; //may be swapped while the drawing thread is running
 	private FractalViewport viewport;
+	private volatile JuliaInset inset; //drawn in the upper right-hand corner, may be null
 	
 	
 	public DrawPanel(Fractal fractal, FractalViewport bounds)
@@ -26,11 +29,44 @@ public class DrawPanel extends JPanel implements Runnable
 	
 	
 	
+	/**
+	 * Switches to drawing the given fractal from now on.
+	 * @param newFractal the fractal to draw
+	 */
+	public void setFractal(Fractal newFractal)
+	{
+		fractal = newFractal;
+	}
+	
+	
+	
+	/**
+	 * Sets the Julia set inset drawn in the upper right-hand corner.
+	 * @param newInset the inset to draw, or null to draw none
+	 */
+	public void setInset(JuliaInset newInset)
+	{
+		inset = newInset;
+	}
+	
+	
+	
 	@Override
 	public void paintComponent(Graphics g)
 	{
 		super.paintComponent(g);
 		g.drawImage(fractal.getImage(), 0, 0, this);
+		
+		JuliaInset currentInset = inset;
+		if (currentInset != null && currentInset.isVisible())
+		{
+			BufferedImage insetImage = currentInset.getImage();
+			int x = getWidth() - insetImage.getWidth() - 5;
+			g.drawImage(insetImage, x, 5, this);
+			g.setColor(Color.GRAY);
+			g.drawRect(x - 1, 4, insetImage.getWidth() + 1, insetImage.getHeight() + 1);
+		}
+		
 		viewport.paint(g);
 	}
 	
@@ -1,27 +1,37 @@
 
 package mandelbrotfractal2;
 
-import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
  * The base class for all Fractals, whether they are similar to the Koch Snowflake
- * or the Mandelbrot Set. All fractals are drawn onto a BufferedImage, and they all
+ * or the Mandelbrot Set. All fractals are drawn onto a RenderTarget, and they all
  * use a FractalViewport for panning, zooming, and scaling to fit the screen.
  * @author Jesse Victors
  */
 public abstract class Fractal
 {
-	protected BufferedImage fractalImage; //the image that the fractal is drawn on
+	protected RenderTarget target; //the surface that the fractal is drawn on
 	protected FractalViewport viewport; //used to convert the view to fit the screen
 	
 	public Fractal(FractalViewport viewport)
+	{
+		this(viewport, new HeapRenderTarget(viewport.getScreenSize().width, viewport.getScreenSize().height)); //create to fit the screen
+	}
+	
+	
+	
+	/**
+	 * Creates a fractal that is drawn onto the given target, which should
+	 * be the same size as the viewport's screen.
+	 * @param viewport used to convert the view to fit the target
+	 * @param target the surface to draw on, possibly outside of the Java heap
+	 */
+	public Fractal(FractalViewport viewport, RenderTarget target)
 	{
 		this.viewport = viewport;
-		
-		Dimension screenSize = viewport.getScreenSize();
-		fractalImage = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB); //create to fit the screen
+		this.target = target;
 		
 		startRendering(); //returns immediately
 	}
@@ -32,10 +42,21 @@ public abstract class Fractal
 	 * @return the BufferedImage that the fractal is drawn onto.
 	 * There is no guarantee that the fractal is sufficiently rendered,
 	 * rather the returned image is how the fractal currently appears.
+	 * This is null if the fractal is being drawn onto an off-heap RenderTarget.
 	 */
 	public final BufferedImage getImage()
 	{
-		return fractalImage;
+		return target.getImage();
+	}
+	
+	
+	
+	/**
+	 * @return the RenderTarget that the fractal is drawn onto
+	 */
+	public final RenderTarget getRenderTarget()
+	{
+		return target;
 	}
 	
 	
@@ -47,6 +68,14 @@ public abstract class Fractal
 	
 	
 	
+	/**
+	 * Stops the rendering, so that the fractal can be thrown away.
+	 * Any threads started by startRendering should exit soon after.
+	 */
+	public abstract void stopRendering();
+	
+	
+	
 	/**
 	 * It is strongly recommended that this function be overridden.
 	 * @return a Rectangle in double precision containing the entire fractal.
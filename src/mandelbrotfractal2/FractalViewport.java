@@ -19,6 +19,7 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 	private Dimension screenSize; //the size of the computer screen
 	private Point.Double conversion; //conversion between fractalView and screenSize, stored rather than recalculated every time
 	private boolean changingBounds = false; //are we currently drawing the box?
+	private volatile Point cursor; //the last location of the mouse on the screen, null if it hasn't moved yet
 	
 	private ChangeListener changeListener; //called when the user modifies anything (zooming, panning, etc)
 	private int maxIterations; //how many iterations deep should the fractal be rendered?
@@ -43,6 +44,21 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 	
 	
 	
+	/**
+	 * Creates a viewport looking at the same view as the given one, with the same
+	 * maxIterations and coloring, but fitted to a screen of a different size.
+	 * This is used for rendering the current view at a higher resolution.
+	 * @param other the viewport to copy
+	 * @param screenSize the size of the new screen
+	 */
+	public FractalViewport(FractalViewport other, Dimension screenSize)
+	{
+		this(screenSize, (Rectangle.Double)other.fractalView.clone(), other.maxIterations);
+		coloring = other.coloring;
+	}
+	
+	
+	
 	/**
 	 * Called when the user presses any of the mouse buttons.
 	 * If the left mouse button is pressed, this methods starts the creation
@@ -88,6 +104,7 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 	@Override
 	public void mouseDragged(MouseEvent e)
 	{
+		cursor = e.getPoint();
 		if (!changingBounds) //e.getButton() doesn't work correctly, but this does
 			return;
 		
@@ -102,6 +119,19 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 	
 	
 	
+	/**
+	 * Called when the user moves the mouse without pressing any buttons.
+	 * This keeps track of the cursor, so the fractal under it can be looked up.
+	 * @param e the MouseEvent for this mouse move
+	 */
+	@Override
+	public void mouseMoved(MouseEvent e)
+	{
+		cursor = e.getPoint();
+	}
+	
+	
+	
 	/**
 	 * Called when the user lets go of the mouse.
 	 * If the user is finished drawing the box, it first checks if the box has less
@@ -236,6 +266,42 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 	
 	
 	
+	/**
+	 * Converts the given location in the fractal to its location on the screen and returns the result.
+	 * This is the inverse of convertToFractalLoc, so the result usually lies between pixels.
+	 * @param fractalLoc a location in the fractal
+	 * @return the equivalent location on the screen, in fractions of a pixel
+	 */
+	public Point.Double convertToScreenLoc(Point.Double fractalLoc)
+	{
+		return new Point.Double((fractalLoc.x - fractalView.x) / getPixelSize(), 
+								(fractalLoc.y - fractalView.y) / getPixelSize());
+	}
+	
+	
+	
+	/**
+	 * @return the width (and height) of a screen pixel within the fractal,
+	 * as used by convertToFractalLoc and convertToScreenLoc
+	 */
+	public double getPixelSize()
+	{
+		return conversion.y;
+	}
+	
+	
+	
+	/**
+	 * @return the location in the fractal of the mouse cursor, or null if the mouse hasn't moved yet
+	 */
+	public Point.Double getCursorLocation()
+	{
+		Point screenLoc = cursor;
+		return screenLoc == null ? null : convertToFractalLoc(screenLoc);
+	}
+	
+	
+	
 	/**
 	 * @return the size of the screen
 	 */
@@ -290,6 +356,17 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 
 	
 	
+	/**
+	 * Sets the coefficient that can be used for the fractal's coloring scheme.
+	 * @param newColoring the new value
+	 */
+	public void setColoring(double newColoring)
+	{
+		coloring = newColoring;
+	}
+	
+	
+	
 	/**
 	 * @return the resolution of the fractal, in other words the maximum iterations
 	 * needed to sufficiently render it.
@@ -336,10 +413,6 @@ public final class FractalViewport implements MouseListener, MouseMotionListener
 	public void keyReleased(KeyEvent e)
 	{ }
 	
-	@Override
-	public void mouseMoved(MouseEvent e)
-	{ }
-	
 	@Override
 	public void mouseClicked(MouseEvent e)
 	{ }
@@ -0,0 +1,202 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Point;
+
+/**
+ * A copy of the pixels of a rendered frame, along with the view they were rendered at.
+ * This is used to show the user a preview of a new view the moment it changes: the
+ * snapshot is stretched (when zooming in), shrunk (when unzooming) or shifted (when
+ * panning) onto the new view, which costs nothing compared to computing the fractal.
+ * The chunks are then rendered on top of the preview as usual.
+ * A snapshot's buffers are meant to be reused from frame to frame (see copyFrom), since
+ * allocating a full frame on every change of the view is far slower than copying into one.
+ * @author Jesse Victors
+ */
+public class FrameSnapshot
+{
+	private static final int ESTIMATE_STEP = 4; //estimateCost samples every 4th pixel of every 4th row
+	
+	private final int width, height;
+	private float[] iterations;
+	private int[] pixels;
+	private int[] rgbRow; //the row being copied by copyFrom
+	private float[] iterationsRow;
+	
+	private FractalViewport snapshotViewport; //a copy of the viewport that the snapshot was rendered with
+	
+	
+	/**
+	 * Creates an empty snapshot of the given size. Nothing should be read from it until copyFrom is called.
+	 * @param width the width of the targets that will be copied
+	 * @param height the height of the targets that will be copied
+	 */
+	public FrameSnapshot(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		iterations = new float[width * height];
+		pixels = new int[width * height];
+		rgbRow = new int[width];
+		iterationsRow = new float[width];
+	}
+	
+	
+	
+	/**
+	 * Copies the pixels of the given target into this snapshot, replacing whatever it held.
+	 * @param target the target to copy, which must be the size of this snapshot
+	 * @param viewport the viewport that the target was rendered with
+	 */
+	public void copyFrom(RenderTarget target, FractalViewport viewport)
+	{
+		for (int y = 0; y < height; y++)
+		{
+			target.getRow(y, rgbRow);
+			target.getIterationsRow(y, iterationsRow);
+			System.arraycopy(rgbRow, 0, pixels, y * width, width);
+			System.arraycopy(iterationsRow, 0, iterations, y * width, width);
+		}
+		
+		snapshotViewport = new FractalViewport(viewport, viewport.getScreenSize());
+	}
+	
+	
+	
+	/**
+	 * @return true if the snapshot was taken at exactly the view of the given viewport
+	 */
+	public boolean isSameView(FractalViewport viewport)
+	{
+		return snapshotViewport.getFractalViewport().equals(viewport.getFractalViewport()) && 
+				snapshotViewport.getMaxIterations() == viewport.getMaxIterations();
+	}
+	
+	
+	
+	/**
+	 * @return the width of a pixel of the snapshot within the fractal
+	 */
+	public double getPixelSize()
+	{
+		return snapshotViewport.getPixelSize();
+	}
+	
+	
+	
+	/**
+	 * Draws this snapshot onto the target as it would appear in the given viewport.
+	 * Each pixel takes the value of the nearest pixel of the snapshot. Pixels outside of
+	 * the snapshot are left alone. If the coloring has changed, the pixels are recolored
+	 * from their iteration values.
+	 * @param target the target to draw onto
+	 * @param viewport the viewport that the target is about to be rendered with
+	 * @param fractal the fractal, used for recoloring
+	 */
+	public void reproject(RenderTarget target, FractalViewport viewport, PointBasedFractal fractal)
+	{
+		boolean recolor = snapshotViewport.getColoring() != viewport.getColoring();
+		
+		int[] columns = new int[target.getWidth()]; //the column of the snapshot for each column of the target
+		for (int x = 0; x < columns.length; x++)
+			columns[x] = toSnapshotColumn(x, viewport);
+		
+		int[] targetRGBRow = new int[columns.length];
+		float[] targetIterationsRow = new float[columns.length];
+		int previousRow = -1;
+		for (int y = 0; y < target.getHeight(); y++)
+		{
+			int row = toSnapshotRow(y, viewport);
+			if (row < 0)
+				continue;
+			
+			if (row != previousRow) //when zooming in, several rows of the target come from the same row
+			{
+				target.getRow(y, targetRGBRow); //so the pixels outside of the snapshot are left alone
+				target.getIterationsRow(y, targetIterationsRow);
+				for (int x = 0; x < columns.length; x++)
+				{
+					if (columns[x] < 0)
+						continue;
+					
+					int index = row * width + columns[x];
+					targetIterationsRow[x] = iterations[index];
+					targetRGBRow[x] = recolor ? fractal.getRGB(iterations[index]) : pixels[index];
+				}
+				previousRow = row;
+			}
+			
+			target.setRow(y, targetIterationsRow, targetRGBRow);
+		}
+	}
+	
+	
+	
+	/**
+	 * Estimates the cost of rendering a chunk of the given viewport from the pixels of this snapshot
+	 * that it covers. A chunk that looks entirely inside the set only costs its perimeter, thanks
+	 * to the Internal Area optimization. Only a sparse grid of the chunk's pixels is sampled, and the
+	 * samples are scaled up to the whole chunk, so that estimating every chunk of a large screen is quick.
+	 * @param x the left column of the chunk
+	 * @param y the top row of the chunk
+	 * @param size the width and height of the chunk
+	 * @param viewport the viewport that the chunk belongs to
+	 * @return the iterations for points that escape and the number of points inside the set,
+	 * or null if part of the chunk lies outside of this snapshot
+	 */
+	public long[] estimateCost(int x, int y, int size, FractalViewport viewport)
+	{
+		int[] columns = new int[(size + ESTIMATE_STEP - 1) / ESTIMATE_STEP];
+		for (int j = 0; j < columns.length; j++)
+			if ((columns[j] = toSnapshotColumn(x + j * ESTIMATE_STEP, viewport)) < 0)
+				return null;
+		
+		long escaped = 0, inside = 0;
+		for (int row = y; row < y + size; row += ESTIMATE_STEP)
+		{
+			int snapshotRow = toSnapshotRow(row, viewport);
+			if (snapshotRow < 0)
+				return null;
+			
+			for (int snapshotColumn : columns)
+			{
+				float value = iterations[snapshotRow * width + snapshotColumn];
+				if (value == PointBasedFractal.INSIDE)
+					inside++;
+				else
+					escaped += (long)value + 1;
+			}
+		}
+		
+		if (escaped == 0)
+			return new long[]{0, 4 * size - 4};
+		long samples = columns.length * (long)columns.length;
+		return new long[]{escaped * size * size / samples, inside * size * size / samples};
+	}
+	
+	
+	
+	/**
+	 * @param x a column of the given viewport
+	 * @param viewport the viewport that the column belongs to
+	 * @return the nearest column of the snapshot, or -1 if it is outside of the snapshot
+	 */
+	private int toSnapshotColumn(int x, FractalViewport viewport)
+	{
+		long column = Math.round(snapshotViewport.convertToScreenLoc(viewport.convertToFractalLoc(new Point(x, 0))).x);
+		return column < 0 || column >= width ? -1 : (int)column;
+	}
+	
+	
+	
+	/**
+	 * @param y a row of the given viewport
+	 * @param viewport the viewport that the row belongs to
+	 * @return the nearest row of the snapshot, or -1 if it is outside of the snapshot
+	 */
+	private int toSnapshotRow(int y, FractalViewport viewport)
+	{
+		long row = Math.round(snapshotViewport.convertToScreenLoc(viewport.convertToFractalLoc(new Point(0, y))).y);
+		return row < 0 || row >= height ? -1 : (int)row;
+	}
+}
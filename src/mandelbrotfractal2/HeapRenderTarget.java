@@ -0,0 +1,109 @@
+
+package mandelbrotfractal2;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * A RenderTarget that lives on the Java heap and is backed by a BufferedImage,
+ * so that it can be drawn straight to the screen. This is what is used for the
+ * interactive view, where the image is never larger than the screen.
+ * @author Jesse Victors
+ */
+public class HeapRenderTarget extends RenderTarget
+{
+	private BufferedImage image;
+	private int[] pixels; //the image's own pixel array, written to directly
+	private float[] iterations;
+	
+	
+	public HeapRenderTarget(int width, int height)
+	{
+		super(width, height);
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		iterations = new float[width * height];
+	}
+	
+	
+	
+	@Override
+	public void setPixel(int x, int y, float iterationValue, int rgb)
+	{
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return; //chunks may hang over the edge of the screen
+		
+		int index = y * width + x;
+		iterations[index] = iterationValue;
+		pixels[index] = rgb;
+	}
+	
+	
+	
+	@Override
+	public int getRGB(int x, int y)
+	{
+		return pixels[y * width + x];
+	}
+	
+	
+	
+	@Override
+	public float getIterations(int x, int y)
+	{
+		return iterations[y * width + x];
+	}
+	
+	
+	
+	@Override
+	public void getRow(int y, int[] rgbRow)
+	{
+		System.arraycopy(pixels, y * width, rgbRow, 0, width);
+	}
+	
+	
+	
+	@Override
+	public void shift(int dx, int dy)
+	{
+		int minX = Math.max(0, -dx), maxX = Math.min(width, width - dx); //the columns whose source is inside
+		if ((dx == 0 && dy == 0) || minX >= maxX)
+			return;
+		
+		for (int j = 0; j < height; j++)
+		{
+			int y = dy > 0 ? j : height - 1 - j; //so each row is read before it is overwritten
+			if (y + dy < 0 || y + dy >= height)
+				continue;
+			
+			System.arraycopy(pixels, (y + dy) * width + minX + dx, pixels, y * width + minX, maxX - minX);
+			System.arraycopy(iterations, (y + dy) * width + minX + dx, iterations, y * width + minX, maxX - minX);
+		}
+	}
+	
+	
+	
+	@Override
+	public void setRow(int y, float[] iterationsRow, int[] rgbRow)
+	{
+		System.arraycopy(iterationsRow, 0, iterations, y * width, width);
+		System.arraycopy(rgbRow, 0, pixels, y * width, width);
+	}
+	
+	
+	
+	@Override
+	public void getIterationsRow(int y, float[] iterationsRow)
+	{
+		System.arraycopy(iterations, y * width, iterationsRow, 0, width);
+	}
+	
+	
+	
+	@Override
+	public BufferedImage getImage()
+	{
+		return image;
+	}
+}
@@ -0,0 +1,318 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A compact file holding the smooth iteration value of every pixel of a render,
+ * along with the view, maxIterations and coloring it was rendered with. Since the colors
+ * are derived from the iteration values, a render saved this way can be recolored,
+ * analyzed or exported again later without computing the fractal again.
+ * Each value is quantized to 1/QUANTUM of an iteration, which is far finer than any
+ * coloring can show, and stored as the difference from the pixel to its left. Neighboring
+ * pixels have nearly the same value, so the differences are small, and they are written
+ * as variable-length integers that take a single byte for most pixels. The rows are grouped
+ * into blocks that can be decoded on their own, and an index of where each block starts
+ * follows the header, so a reader can memory-map and decode any block on its own.
+ * Everything is little-endian, like the file behind an OffHeapRenderTarget.
+ * @author Jesse Victors
+ */
+public class IterationFile
+{
+	private static final int MAGIC = 0x5449424D; //"MBIT" when read as little-endian bytes
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 68;
+	private static final int ROWS_PER_BLOCK = 64;
+	private static final int QUANTUM = 256; //the number of steps per iteration
+	private static final int INSIDE_CODE = -1; //the quantized value of points inside the set
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int width, height, rowsPerBlock;
+	private FractalViewport viewport; //the view that the file was rendered with
+	private long[] blockOffsets; //where each block starts, followed by the end of the file
+	
+	
+	/**
+	 * Opens an existing file for reading. Only the header and the block index are read;
+	 * the blocks themselves are memory-mapped as they are needed.
+	 * @param inputFile the file to open
+	 * @throws IOException if the file could not be read or isn't an iteration file
+	 */
+	public IterationFile(File inputFile) throws IOException
+	{
+		file = new RandomAccessFile(inputFile, "r");
+		channel = file.getChannel();
+		
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			throw new IOException(inputFile + " is not an iteration file of version " + VERSION);
+		
+		width = header.getInt();
+		height = header.getInt();
+		Rectangle.Double view = new Rectangle.Double(header.getDouble(), header.getDouble(), header.getDouble(), header.getDouble());
+		viewport = new FractalViewport(new Dimension(width, height), view, header.getInt());
+		viewport.setColoring(header.getDouble());
+		rowsPerBlock = header.getInt();
+		
+		int numOfBlocks = header.getInt();
+		ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, (numOfBlocks + 1) * 8L).order(ByteOrder.LITTLE_ENDIAN);
+		blockOffsets = new long[numOfBlocks + 1];
+		for (int j = 0; j <= numOfBlocks; j++)
+			blockOffsets[j] = index.getLong();
+	}
+	
+	
+	
+	/**
+	 * Saves the iteration values of the given target.
+	 * @param target the target to save, which should be completely rendered
+	 * @param viewport the viewport that the target was rendered with
+	 * @param outputFile the file to write, which is replaced if it exists
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(RenderTarget target, FractalViewport viewport, File outputFile) throws IOException
+	{
+		int width = target.getWidth(), height = target.getHeight();
+		int numOfBlocks = (height + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+		long[] offsets = new long[numOfBlocks + 1];
+		
+		try (RandomAccessFile out = new RandomAccessFile(outputFile, "rw"))
+		{
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			Rectangle.Double view = viewport.getFractalViewport();
+			header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+			header.putDouble(view.x).putDouble(view.y).putDouble(view.width).putDouble(view.height);
+			header.putInt(viewport.getMaxIterations()).putDouble(viewport.getColoring());
+			header.putInt(ROWS_PER_BLOCK).putInt(numOfBlocks);
+			header.flip();
+			outChannel.write(header, 0);
+			
+			long position = HEADER_BYTES + (numOfBlocks + 1) * 8L; //the blocks start after the index
+			BlockEncoder encoder = new BlockEncoder(width * ROWS_PER_BLOCK);
+			for (int block = 0; block < numOfBlocks; block++)
+			{
+				offsets[block] = position;
+				int maxY = Math.min(height, (block + 1) * ROWS_PER_BLOCK);
+				for (int y = block * ROWS_PER_BLOCK; y < maxY; y++)
+				{
+					int previous = 0;
+					for (int x = 0; x < width; x++)
+					{
+						int quantized = quantize(target.getIterations(x, y));
+						encoder.put(quantized - previous);
+						previous = quantized;
+					}
+				}
+				
+				position += encoder.writeTo(outChannel, position);
+			}
+			offsets[numOfBlocks] = position;
+			
+			ByteBuffer index = ByteBuffer.allocate(offsets.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+			for (long offset : offsets)
+				index.putLong(offset);
+			index.flip();
+			outChannel.write(index, HEADER_BYTES);
+		}
+	}
+	
+	
+	
+	/**
+	 * Decodes one block of rows.
+	 * @param block the index of the block
+	 * @param values receives the iteration values of the block's rows in row-major
+	 * order, and must hold at least getRowsPerBlock() * getWidth() values
+	 * @return the number of rows in the block, which is less than getRowsPerBlock() for the last block
+	 * @throws IOException if the block could not be mapped
+	 */
+	public int readBlock(int block, float[] values) throws IOException
+	{
+		ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[block], blockOffsets[block + 1] - blockOffsets[block]);
+		int rows = Math.min(rowsPerBlock, height - block * rowsPerBlock);
+		
+		int j = 0;
+		for (int row = 0; row < rows; row++)
+		{
+			int quantized = 0;
+			for (int x = 0; x < width; x++)
+			{
+				quantized += readVarInt(data);
+				values[j++] = quantized == INSIDE_CODE ? PointBasedFractal.INSIDE : quantized / (float)QUANTUM;
+			}
+		}
+		
+		return rows;
+	}
+	
+	
+	
+	/**
+	 * Encodes the file as a PNG image, colored with the cyclic gradient that PointBasedFractal
+	 * colors with by default. Only one block is decoded at a time, so no full image is
+	 * ever held in memory.
+	 * @param out the stream to write to. It is not closed by this method.
+	 * @param coloring the coloring coefficient to color with
+	 * @throws IOException if a block could not be read or the stream could not be written to
+	 */
+	public void writePng(OutputStream out, double coloring) throws IOException
+	{
+		PngEncoder encoder = new PngEncoder(out, width, height);
+		float[] values = new float[rowsPerBlock * width];
+		int[] rgbRow = new int[width];
+		for (int block = 0; block < getBlockCount(); block++)
+		{
+			int rows = readBlock(block, values);
+			for (int row = 0; row < rows; row++)
+			{
+				for (int x = 0; x < width; x++)
+					rgbRow[x] = PointBasedFractal.getCyclicRGB(values[row * width + x], coloring);
+				encoder.writeRow(rgbRow);
+			}
+		}
+		encoder.finish();
+	}
+	
+	
+	
+	public void close() throws IOException
+	{
+		file.close();
+	}
+	
+	
+	
+	/**
+	 * @return a viewport of the view, maxIterations and coloring that the file was rendered
+	 * with, sized to the file rather than the screen
+	 */
+	public FractalViewport getViewport()
+	{
+		return viewport;
+	}
+	
+	
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	
+	
+	public int getRowsPerBlock()
+	{
+		return rowsPerBlock;
+	}
+	
+	
+	
+	public int getBlockCount()
+	{
+		return blockOffsets.length - 1;
+	}
+	
+	
+	
+	private static int quantize(float iterations)
+	{
+		if (iterations == PointBasedFractal.INSIDE)
+			return INSIDE_CODE;
+		
+		int quantized = Math.round(iterations * QUANTUM);
+		if (quantized == INSIDE_CODE || quantized == -QUANTUM)
+			quantized++; //a value just below 0 or at -1 is rounded up a quantum rather than read back as INSIDE
+		return quantized;
+	}
+	
+	
+	
+	/**
+	 * Reads a variable-length integer written by BlockEncoder.put.
+	 */
+	private static int readVarInt(ByteBuffer data)
+	{
+		int zigZag = 0, shift = 0;
+		byte b;
+		do
+		{
+			b = data.get();
+			zigZag |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		
+		return (zigZag >>> 1) ^ -(zigZag & 1);
+	}
+	
+	
+	
+	/**
+	 * Collects the encoded values of one block before they are written to the file.
+	 */
+	private static class BlockEncoder
+	{
+		private byte[] bytes;
+		private int size;
+		
+		
+		public BlockEncoder(int expectedValues)
+		{
+			bytes = new byte[expectedValues * 2];
+		}
+		
+		
+		/**
+		 * Appends a value as a zigzag variable-length integer: small values, whether they are
+		 * positive or negative, take one byte, and no value takes more than five.
+		 */
+		public void put(int value)
+		{
+			if (size + 5 > bytes.length)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			
+			int zigZag = (value << 1) ^ (value >> 31);
+			while ((zigZag & ~0x7F) != 0)
+			{
+				bytes[size++] = (byte)((zigZag & 0x7F) | 0x80);
+				zigZag >>>= 7;
+			}
+			bytes[size++] = (byte)zigZag;
+		}
+		
+		
+		/**
+		 * Writes the values collected so far to the given position of the file, and empties this encoder.
+		 * @return the number of bytes written
+		 */
+		public int writeTo(FileChannel channel, long position) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, size);
+			while (buffer.hasRemaining())
+				channel.write(buffer, position + buffer.position());
+			
+			int written = size;
+			size = 0;
+			return written;
+		}
+	}
+}
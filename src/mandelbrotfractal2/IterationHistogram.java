@@ -0,0 +1,169 @@
+
+package mandelbrotfractal2;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many points of a frame escaped after each whole number of iterations,
+ * so that the iteration values can be colored by where they fall in the distribution
+ * (histogram equalization) rather than by their absolute value. Each of the frame's
+ * colors then covers about as many pixels as any other, whatever the zoom level.
+ * Every thread counts into its own histogram first, and only adds it to the shared
+ * histogram once it has finished a chunk. The shared histogram is an array of atomic
+ * counters, so each bin is merged on its own and the threads never hold a lock.
+ * Points inside the set aren't counted, since they are always black.
+ * @author Jesse Victors
+ */
+public class IterationHistogram
+{
+	private static final int REFRESH_FACTOR = 8; //the distribution is recomputed when the count grows by 1/8
+	
+	private final int numOfBins;
+	private AtomicIntegerArray counts; //the number of points in each bin, over every thread
+	private AtomicLong total = new AtomicLong();
+	private ThreadLocal<LocalCounts> localCounts = new ThreadLocal<LocalCounts>()
+	{
+		@Override
+		protected LocalCounts initialValue()
+		{
+			return new LocalCounts();
+		}
+	};
+	
+	private volatile float[] distribution; //the fraction of points below each bin, null until there are any points
+	private long distributionTotal; //the total that the distribution was computed from, guarded by this
+	
+	
+	/**
+	 * @param maxIterations the maximum number of iterations of the frame
+	 */
+	public IterationHistogram(int maxIterations)
+	{
+		numOfBins = maxIterations + 1;
+		counts = new AtomicIntegerArray(numOfBins);
+	}
+	
+	
+	
+	/**
+	 * Counts an iteration value into the calling thread's own histogram.
+	 * @param iterations a value returned by getIterationsAt
+	 */
+	public void add(float iterations)
+	{
+		if (iterations != PointBasedFractal.INSIDE)
+			localCounts.get().add(getBin(iterations));
+	}
+	
+	
+	
+	/**
+	 * Adds the calling thread's own histogram to the shared histogram and empties it.
+	 * If the shared histogram has grown enough, the distribution is recomputed.
+	 */
+	public void flush()
+	{
+		long added = localCounts.get().flush();
+		if (added == 0)
+			return;
+		
+		long newTotal = total.addAndGet(added);
+		if (distribution == null || newTotal - getDistributionTotal() > newTotal / REFRESH_FACTOR)
+			updateDistribution();
+	}
+	
+	
+	
+	/**
+	 * Recomputes the distribution from everything in the shared histogram so far.
+	 */
+	public synchronized void updateDistribution()
+	{
+		long newTotal = total.get();
+		if (newTotal == 0 || newTotal == distributionTotal)
+			return;
+		
+		float[] newDistribution = new float[numOfBins + 1];
+		long below = 0;
+		for (int j = 0; j < numOfBins; j++)
+		{
+			newDistribution[j] = below / (float)newTotal;
+			below += counts.get(j);
+		}
+		newDistribution[numOfBins] = below / (float)newTotal; //may be slightly off 1 while threads are flushing
+		
+		distribution = newDistribution;
+		distributionTotal = newTotal;
+	}
+	
+	
+	
+	private synchronized long getDistributionTotal()
+	{
+		return distributionTotal;
+	}
+	
+	
+	
+	/**
+	 * Looks up the fraction of the points counted so far that escaped sooner than the
+	 * given iteration value. Within a bin, the fraction is interpolated, so that
+	 * smooth iteration values still give a smooth gradient.
+	 * @param iterations a value returned by getIterationsAt, other than INSIDE
+	 * @return a value between 0 and 1, or NaN if nothing has been counted yet
+	 */
+	public float getLevel(float iterations)
+	{
+		float[] currentDistribution = distribution;
+		if (currentDistribution == null)
+			return Float.NaN;
+		
+		int bin = getBin(iterations);
+		float fraction = Math.max(0, Math.min(1, iterations - bin)); //values below 0 are counted in the first bin
+		return currentDistribution[bin] + (currentDistribution[bin + 1] - currentDistribution[bin]) * fraction;
+	}
+	
+	
+	
+	private int getBin(float iterations)
+	{
+		return Math.max(0, Math.min(numOfBins - 1, (int)iterations));
+	}
+	
+	
+	
+	/**
+	 * The histogram of a single thread. Only the bins that were touched are
+	 * added to the shared histogram, since a chunk only covers a few of them.
+	 */
+	private class LocalCounts
+	{
+		private int[] binCounts = new int[numOfBins];
+		private int[] touchedBins = new int[numOfBins];
+		private int numOfTouchedBins;
+		
+		
+		public void add(int bin)
+		{
+			if (binCounts[bin]++ == 0)
+				touchedBins[numOfTouchedBins++] = bin;
+		}
+		
+		
+		public long flush()
+		{
+			long added = 0;
+			for (int j = 0; j < numOfTouchedBins; j++)
+			{
+				int bin = touchedBins[j];
+				counts.addAndGet(bin, binCounts[bin]);
+				added += binCounts[bin];
+				binCounts[bin] = 0;
+			}
+			
+			numOfTouchedBins = 0;
+			return added;
+		}
+	}
+}
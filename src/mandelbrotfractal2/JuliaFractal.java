@@ -0,0 +1,97 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+/**
+ * Class to render the Julia set of a point c, the points z whose orbit under z^2 + c
+ * doesn't escape. Every point of the Mandelbrot set has a connected Julia set, and every
+ * point outside of it has a Julia set that is scattered into dust, so the Julia set of a
+ * point says a lot about the Mandelbrot set around it.
+ * This fractal doesn't start any rendering threads of its own. Instead, whoever owns it
+ * renders it one chunk at a time with renderNextChunk (see JuliaInset).
+ * @author Jesse Victors
+ */
+public class JuliaFractal extends PointBasedFractal
+{
+	private static final double LOG_2 = Math.log(2); //so it doesn't have to be recomputed
+	private double cx, cy; //the constant c, which picks the Julia set
+	
+	
+	public JuliaFractal(FractalViewport viewport)
+	{
+		super(viewport);
+	}
+	
+	
+	
+	public static Rectangle.Double getNormalViewingBounds()
+	{
+		return new Rectangle.Double(-1.6, -1.2, 3.2, 2.4);
+	}
+	
+	
+	
+	/**
+	 * Doesn't register with the RenderScheduler, since the chunks are rendered by calling renderNextChunk.
+	 */
+	@Override
+	public void startRendering()
+	{ }
+	
+	
+	
+	/**
+	 * Switches to the Julia set of the given point and restarts the rendering.
+	 * Chunks of the previous Julia set that weren't rendered yet are thrown away.
+	 * @param c the point of the Mandelbrot set whose Julia set should be rendered
+	 */
+	public void setConstant(Point.Double c)
+	{
+		cx = c.x;
+		cy = c.y;
+		restartRendering();
+	}
+	
+	
+	
+	/**
+	 * @return true if c is real, since then the Julia set is its own complex conjugate
+	 */
+	@Override
+	public boolean isSymmetricAboutRealAxis()
+	{
+		return cy == 0;
+	}
+	
+	
+	
+	/**
+	 * Computes the iteration value at the specified point the fractal and returns the result.
+	 * This is the same Normalized Iteration Count algorithm as the Mandelbrot set uses,
+	 * except that the orbit starts at the point and c stays the same for every point.
+	 * @param pt the specified location in the fractal
+	 * @return the iteration value for that location using the
+	 * maxIterations variable from the viewport, or INSIDE.
+	 */
+	@Override
+	public float getIterationsAt(Point.Double pt)
+	{
+		double x = pt.x, xSq = x * x, y = pt.y, ySq = y * y;
+		int iterations;
+		for (iterations = 0; iterations < viewport.getMaxIterations() && (xSq + ySq <= 144); iterations++)
+		{
+			y = 2 * x * y + cy;
+			x = xSq - ySq + cx;
+			xSq = x * x;
+			ySq = y * y;
+		}
+		
+		if (iterations == viewport.getMaxIterations())
+			return INSIDE;
+		
+		float smooth = (float)(iterations - Math.log(Math.log(xSq + ySq)) / LOG_2);
+		return smooth == INSIDE ? Math.nextUp(INSIDE) : smooth; //far from the set the value can go negative, but must not read as INSIDE
+	}
+}
@@ -0,0 +1,154 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+
+/**
+ * Shows the Julia set of the point under the mouse cursor in a small image, which
+ * is drawn in the corner of the screen by the DrawPanel and follows the cursor around.
+ * The Julia set is rendered by a single thread on a time budget. Every FRAME_INTERVAL,
+ * it renders as many chunks as fit in its share of the frame and then sleeps until the
+ * next frame, so it never takes more than that share of one core away from the main
+ * fractal. A chunk that runs over the budget is paid back in the next frame. Between
+ * chunks it checks the cursor, and as soon as the cursor has moved it throws away the
+ * rest of the old Julia set and starts on the new one, so no time is spent on stale work.
+ * The thread only runs while the inset is visible.
+ * @author Jesse Victors
+ */
+public class JuliaInset implements Runnable
+{
+	private static final long FRAME_INTERVAL = 33; //the same as the DrawPanel, in milliseconds
+	private static final int MAX_ITERATIONS = 250;
+	
+	private final FractalViewport mainViewport; //the viewport that the cursor is on
+	private final JuliaFractal julia;
+	private final long frameBudget; //the rendering time allowed per frame, in nanoseconds
+	private Point.Double constant; //the point whose Julia set is being rendered
+	private volatile boolean visible = true;
+	private volatile Thread thread; //the thread that is rendering the Julia set, or null while the inset is hidden
+	
+	
+	/**
+	 * Creates the inset and starts its thread.
+	 * @param mainViewport the viewport that the cursor moves over
+	 * @param size the size of the inset in pixels
+	 * @param coreShare the fraction of one core that the inset may use, between 0 and 1
+	 */
+	public JuliaInset(FractalViewport mainViewport, Dimension size, double coreShare)
+	{
+		this.mainViewport = mainViewport;
+		julia = new JuliaFractal(new FractalViewport(size, JuliaFractal.getNormalViewingBounds(), MAX_ITERATIONS));
+		frameBudget = (long)(Math.min(1, coreShare) * FRAME_INTERVAL * 1000000);
+		start();
+	}
+	
+	
+	
+	/**
+	 * The function that is run by the thread.
+	 * Renders the Julia set within the budget of every frame until the thread is stopped.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			long debt = 0; //time taken beyond the budget in previous frames
+			while (thread == Thread.currentThread())
+			{
+				long frameStart = System.nanoTime();
+				long deadline = frameStart + frameBudget - debt;
+				while (thread == Thread.currentThread() && System.nanoTime() < deadline)
+					if (!followCursor() && !julia.renderNextChunk())
+						break; //the Julia set is finished
+				debt = Math.max(0, debt + System.nanoTime() - frameStart - frameBudget);
+				
+				long sleepTime = FRAME_INTERVAL - (System.nanoTime() - frameStart) / 1000000;
+				if (sleepTime > 0)
+					Thread.sleep(sleepTime);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	
+	
+	/**
+	 * Restarts the Julia set at the point under the cursor if the cursor has moved.
+	 * @return true if it was restarted
+	 */
+	private synchronized boolean followCursor()
+	{
+		Point.Double cursor = mainViewport.getCursorLocation();
+		if (cursor == null || cursor.equals(constant))
+			return false;
+		
+		constant = cursor;
+		julia.setConstant(cursor);
+		return true;
+	}
+	
+	
+	
+	/**
+	 * @return the image of the Julia set, which may be partially rendered
+	 */
+	public BufferedImage getImage()
+	{
+		return julia.getImage();
+	}
+	
+	
+	
+	/**
+	 * Shows or hides the inset. The thread is stopped while it is hidden.
+	 */
+	public void setVisible(boolean newVisible)
+	{
+		visible = newVisible;
+		if (visible)
+			start();
+		else
+			stop();
+	}
+	
+	
+	
+	/**
+	 * @return true if the inset should be drawn
+	 */
+	public boolean isVisible()
+	{
+		return visible;
+	}
+	
+	
+	
+	/**
+	 * Starts a daemon thread to render the Julia set, unless one is already running.
+	 */
+	private synchronized void start()
+	{
+		if (thread != null)
+			return;
+		
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	
+	/**
+	 * Stops the thread once it finishes the chunk it is rendering.
+	 */
+	private synchronized void stop()
+	{
+		thread = null;
+	}
+}
@@ -4,7 +4,10 @@ package mandelbrotfractal2;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 
@@ -22,11 +25,55 @@ public class Main extends JFrame implements KeyListener
 	private Fractal fractal; //the fractal currently being rendered
 	private FractalViewport viewport; //the "magnifying glass" class, has helper conversion functions
 	private DrawPanel drawPanel; //the JPanel that everything is drawn on
+	private JuliaInset juliaInset; //shows the Julia set of the point under the cursor
 	
+	private static final int LARGE_RENDER_SCALE = 8; //how many times larger than the screen the L key renders
+	private static final Dimension INSET_SIZE = new Dimension(256, 192);
+	private static final double INSET_CORE_SHARE = 0.25; //the fraction of a core that the Julia set inset may use
+	private static final int SCREEN_RENDER_WEIGHT = 4; //the screen's share of the threads relative to a large render
 	
+	
+	/**
+	 * Starts the application. If arguments are given, no window is opened. Instead,
+	 * the given view is rendered to a .png file as with the L key, and then the
+	 * application exits. The arguments are, in order: minX, minY, the width and height
+	 * of the view, the width and height of the render in pixels, the fractal
+	 * resolution, and the coloring coefficient. If a previous run with the same
+	 * arguments was killed, it picks up from its last checkpoint.
+	 * Given the path of an .iter file instead, optionally followed by a new coloring
+	 * coefficient, the saved render is colored and exported to a .png without computing it again.
+	 * Any other number of arguments prints the usage and exits.
+	 * @param args nothing, the view to render, or the .iter file to export
+	 */
 	public static void main(String[] args)
 	{
-		new Main();
+		if (args.length == 0)
+		{
+			new Main();
+			return;
+		}
+		
+		if (args.length <= 2)
+		{
+			exportIterationFile(new File(args[0]), args.length == 2 ? Double.valueOf(args[1]) : null);
+			System.exit(0);
+		}
+		
+		if (args.length != 8)
+		{
+			System.err.println("Usage: mandelbrotfractal2.Main [minX minY viewWidth viewHeight pixelsWide pixelsHigh resolution coloring]");
+			System.err.println("   or: mandelbrotfractal2.Main file.iter [coloring]");
+			System.exit(1);
+		}
+		
+		Rectangle.Double view = new Rectangle.Double(Double.parseDouble(args[0]), Double.parseDouble(args[1]),
+													 Double.parseDouble(args[2]), Double.parseDouble(args[3]));
+		Dimension size = new Dimension(Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+		FractalViewport viewport = new FractalViewport(size, view, Integer.parseInt(args[6]));
+		viewport.setColoring(Double.parseDouble(args[7]));
+		
+		renderToFile(viewport);
+		System.exit(0);
 	}
 	
 	
@@ -40,8 +87,10 @@ public class Main extends JFrame implements KeyListener
 		
 		screenSize = new Dimension(new Dimension(displayMode.getWidth(), displayMode.getHeight()));
 		viewport = new FractalViewport(screenSize, MandelbrotFractal.getNormalViewingBounds(), 500);
-		fractal = new MandelbrotFractal(viewport);
+		fractal = createScreenFractal();
 		drawPanel = new DrawPanel(fractal, viewport);
+		juliaInset = new JuliaInset(viewport, INSET_SIZE, INSET_CORE_SHARE);
+		drawPanel.setInset(juliaInset);
 		
 		addKeyListener(this);
 		addKeyListener(viewport);
@@ -83,7 +132,12 @@ public class Main extends JFrame implements KeyListener
 	
 	/**
 	 * Checks for the Escape button, which it uses to quit the application,
-	 * and the P button, which is used to output the current view to a file.
+	 * the P button, which is used to output the current view to a file,
+	 * the L button, which renders the current view at a much larger size to a file,
+	 * the B button, which toggles between rendering by chunks and boundary tracing,
+	 * the H button, which toggles histogram-equalized coloring,
+	 * the U button, which switches between the Mandelbrot set and the Buddhabrot,
+	 * and the J button, which shows or hides the Julia set of the point under the cursor.
 	 * @param e the KeyEvent for the key press
 	 */
 	@Override
@@ -98,6 +152,46 @@ public class Main extends JFrame implements KeyListener
 			case KeyEvent.VK_P:
 				saveView();
 				break;
+				
+			case KeyEvent.VK_B:
+				if (fractal instanceof PointBasedFractal)
+				{
+					PointBasedFractal pointFractal = (PointBasedFractal)fractal;
+					pointFractal.setBoundaryTracing(!pointFractal.isBoundaryTracing());
+				}
+				break;
+				
+			case KeyEvent.VK_H:
+				if (fractal instanceof PointBasedFractal)
+				{
+					PointBasedFractal pointFractal = (PointBasedFractal)fractal;
+					pointFractal.setHistogramColoring(!pointFractal.isHistogramColoring());
+				}
+				break;
+				
+			case KeyEvent.VK_U:
+				fractal.stopRendering();
+				if (fractal instanceof BuddhabrotFractal)
+					fractal = createScreenFractal();
+				else
+					fractal = new BuddhabrotFractal(viewport);
+				drawPanel.setFractal(fractal);
+				break;
+				
+			case KeyEvent.VK_J:
+				juliaInset.setVisible(!juliaInset.isVisible());
+				break;
+				
+			case KeyEvent.VK_L:
+				new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						saveLargeView(LARGE_RENDER_SCALE);
+					}
+				}).start();
+				break;
 		}
 	}
 	
@@ -105,22 +199,129 @@ public class Main extends JFrame implements KeyListener
 	/**
 	 * Renders the current fractal image as a .png file and saves it to disk.
 	 * The view coordinates, the coloring coefficient, and the fractal resolution
-	 * are all included in the filename.
+	 * are all included in the filename. For point-based fractals, the iteration
+	 * values are saved next to it as an .iter file, so it can be recolored later.
 	 */
 	public void saveView()
 	{
 		try
 		{
-			Rectangle.Double view = viewport.getFractalViewport();
-			File outputfile = new File(view.getMinX()+" - "+view.getMaxX()+", "+view.getMinY()+" - "+view.getMaxY()
-					+" ("+viewport.getColoring()+", "+viewport.getMaxIterations()+")"+".png");
-			ImageIO.write(fractal.getImage(), "png", outputfile);
+			ImageIO.write(fractal.getImage(), "png", getViewFile(viewport, ".png"));
+			if (fractal instanceof PointBasedFractal)
+				IterationFile.write(fractal.getRenderTarget(), viewport, getViewFile(viewport, ".iter"));
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
 	}
+	
+	
+	/**
+	 * Creates the Mandelbrot fractal that is shown on the screen. It is given a larger
+	 * share of the rendering threads than a large render, so the screen keeps up with
+	 * the user while a large render runs in the background.
+	 */
+	private MandelbrotFractal createScreenFractal()
+	{
+		MandelbrotFractal screenFractal = new MandelbrotFractal(viewport);
+		screenFractal.setRenderWeight(SCREEN_RENDER_WEIGHT);
+		return screenFractal;
+	}
+	
+	
+	/**
+	 * Renders the current view at a multiple of the screen resolution and saves it
+	 * to disk as a .png file. This blocks until the render is finished.
+	 * @param scale how many times wider and taller than the screen the render should be
+	 */
+	public void saveLargeView(int scale)
+	{
+		Dimension size = new Dimension(screenSize.width * scale, screenSize.height * scale);
+		renderToFile(new FractalViewport(viewport, size));
+	}
+	
+	
+	/**
+	 * Renders the given viewport at the size of its screen and saves it to disk as a .png file.
+	 * The render is made into a memory-mapped file rather than onto the heap, and the .png
+	 * is streamed from it, so even very large renders only need a small heap. Progress is
+	 * checkpointed alongside the .png, so if the application is killed, running the same
+	 * render again resumes it. The iteration values are also saved as an .iter file.
+	 * This blocks until the render is finished.
+	 * @param largeViewport the viewport to render, sized to the render rather than the screen
+	 */
+	public static void renderToFile(FractalViewport largeViewport)
+	{
+		try
+		{
+			Dimension size = largeViewport.getScreenSize();
+			File outputFile = getViewFile(largeViewport, " "+size.width+"x"+size.height+".png");
+			
+			RenderCheckpoint checkpoint = new RenderCheckpoint(outputFile.getPath(), largeViewport, MandelbrotFractal.class);
+			OffHeapRenderTarget target = checkpoint.openTarget();
+			PointBasedFractal largeFractal = new MandelbrotFractal(largeViewport, target, checkpoint);
+			
+			largeFractal.waitUntilRendered();
+			largeFractal.stopRendering();
+			checkpoint.stop();
+			
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile)))
+			{
+				target.writePng(out);
+			}
+			IterationFile.write(target, largeViewport, getViewFile(largeViewport, " "+size.width+"x"+size.height+".iter"));
+			
+			target.close();
+			checkpoint.delete();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Colors the render saved in the given .iter file and saves it as a .png file, named like
+	 * the output of renderToFile. The iteration values are decoded one block at a time,
+	 * so this is quick and needs little memory even for very large renders.
+	 * @param iterFile the file to export
+	 * @param coloring the coloring coefficient to use, or null to use the one it was rendered with
+	 */
+	public static void exportIterationFile(File iterFile, Double coloring)
+	{
+		try
+		{
+			IterationFile input = new IterationFile(iterFile);
+			FractalViewport savedViewport = input.getViewport();
+			if (coloring != null)
+				savedViewport.setColoring(coloring);
+			
+			File outputFile = getViewFile(savedViewport, " "+input.getWidth()+"x"+input.getHeight()+".png");
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile)))
+			{
+				input.writePng(out, savedViewport.getColoring());
+			}
+			input.close();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * @return a file named after the view coordinates, the coloring coefficient,
+	 * and the fractal resolution of the given viewport, ending with the given suffix.
+	 */
+	private static File getViewFile(FractalViewport viewport, String suffix)
+	{
+		Rectangle.Double view = viewport.getFractalViewport();
+		return new File(view.getMinX()+" - "+view.getMaxX()+", "+view.getMinY()+" - "+view.getMaxY()
+				+" ("+viewport.getColoring()+", "+viewport.getMaxIterations()+")"+suffix);
+	}
 
 	
 	
@@ -1,7 +1,6 @@
 
 package mandelbrotfractal2;
 
-import java.awt.Color;
 import java.awt.Point;
 import java.awt.Rectangle;
 
@@ -21,6 +20,20 @@ public class MandelbrotFractal extends PointBasedFractal
 	
 	
 	
+	public MandelbrotFractal(FractalViewport viewport, RenderTarget target)
+	{
+		super(viewport, target);
+	}
+	
+	
+	
+	public MandelbrotFractal(FractalViewport viewport, RenderTarget target, RenderCheckpoint checkpoint)
+	{
+		super(viewport, target, checkpoint);
+	}
+	
+	
+	
 	public static Rectangle.Double getNormalViewingBounds()
 	{
 		return new Rectangle.Double(-2.05, -1.2, 2.7, 2.4);
@@ -29,22 +42,32 @@ public class MandelbrotFractal extends PointBasedFractal
 	
 	
 	/**
-	 * Computes the color at the specified point the fractal and returns the result.
-	 * This uses the Normalized Iteration Count algorithm for coloring, which uses the
-	 * escape radius and the iteration count together, and the sine and cosine function
-	 * are then applied on top to generate a smooth cyclic gradient.
+	 * @return true, since the Mandelbrot set is its own complex conjugate
+	 */
+	@Override
+	public boolean isSymmetricAboutRealAxis()
+	{
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Computes the iteration value at the specified point the fractal and returns the result.
+	 * This uses the Normalized Iteration Count algorithm, which uses the
+	 * escape radius and the iteration count together to give a smooth value.
 	 * @param pt the specified location in the fractal
-	 * @return the color for that location using the
-	 * maxIterations and coloring variables from the viewport.
+	 * @return the iteration value for that location using the
+	 * maxIterations variable from the viewport, or INSIDE.
 	 */
 	@Override
-	public Color getColorAt(Point.Double pt)
+	public float getIterationsAt(Point.Double pt)
 	{
 		double ptYSq = pt.y * pt.y;
 		double xOff = pt.x - 0.25;
 		double q = Math.pow(xOff, 2) + ptYSq;
 		if (q * (q + xOff) < ptYSq / 4)
-			return Color.BLACK; //http://en.wikipedia.org/wiki/Mandelbrot_fractal#Optimizations
+			return INSIDE; //http://en.wikipedia.org/wiki/Mandelbrot_fractal#Optimizations
 		
 		double x = 0, xSq = 0, y = 0, ySq = 0;
 		int iterations;
@@ -57,13 +80,9 @@ public class MandelbrotFractal extends PointBasedFractal
 		}
 
 		if (iterations == viewport.getMaxIterations())
-			return Color.BLACK;
-		else
-		{
-			double mu = iterations - Math.log(Math.log(xSq + ySq)) / LOG_2;
-			float sin = (float)Math.sin(mu / viewport.getColoring()) / 2 + 0.5f;
-			float cos = (float)Math.cos(mu / viewport.getColoring()) / 2 + 0.5f;
-			return new Color(cos, cos, sin);
-		}
+			return INSIDE;
+		
+		float smooth = (float)(iterations - Math.log(Math.log(xSq + ySq)) / LOG_2);
+		return smooth == INSIDE ? Math.nextUp(INSIDE) : smooth; //far from the set the value can go negative, but must not read as INSIDE
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,181 @@
+
+package mandelbrotfractal2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A RenderTarget whose pixels and iteration values live outside of the Java heap,
+ * in a memory-mapped file. This allows renders far
+ * larger than the screen (16k * 16k and beyond) to be made with a small heap and
+ * without long garbage collection pauses.
+ * Since a single buffer cannot hold more than 2 GB, each plane of values
+ * is split into bands of whole rows, and each band gets its own buffer.
+ * The file consists of every packed RGB value in row-major
+ * order, followed by every iteration value in the same order, all little-endian.
+ * @author Jesse Victors
+ */
+public class OffHeapRenderTarget extends RenderTarget
+{
+	private static final long MAX_BAND_BYTES = 1 << 30; //comfortably below the 2 GB limit of a buffer
+	
+	private final int rowsPerBand;
+	private IntBuffer[] pixelBands;
+	private FloatBuffer[] iterationBands;
+	private MappedByteBuffer[] mappings; //null once the target is closed
+	private RandomAccessFile file;
+	
+	
+	private OffHeapRenderTarget(int width, int height)
+	{
+		super(width, height);
+		rowsPerBand = (int)Math.max(1, MAX_BAND_BYTES / (width * 4L));
+		
+		int numOfBands = (height + rowsPerBand - 1) / rowsPerBand;
+		pixelBands = new IntBuffer[numOfBands];
+		iterationBands = new FloatBuffer[numOfBands];
+	}
+	
+	
+	
+	/**
+	 * Creates a target backed by the given file, which is mapped into memory.
+	 * The file is grown to the required size if necessary, and any existing
+	 * contents are kept, so a previous render can be opened again.
+	 * @param backingFile the file to map
+	 * @param width the width of the target, in pixels
+	 * @param height the height of the target, in pixels
+	 * @return the new target
+	 * @throws IOException if the file could not be opened or mapped
+	 */
+	public static OffHeapRenderTarget mapFile(File backingFile, int width, int height) throws IOException
+	{
+		OffHeapRenderTarget target = new OffHeapRenderTarget(width, height);
+		target.file = new RandomAccessFile(backingFile, "rw");
+		
+		long planeBytes = getPlaneBytes(width, height);
+		if (target.file.length() < 2 * planeBytes)
+			target.file.setLength(2 * planeBytes);
+		
+		FileChannel channel = target.file.getChannel();
+		int numOfBands = target.pixelBands.length;
+		target.mappings = new MappedByteBuffer[2 * numOfBands];
+		for (int band = 0; band < numOfBands; band++)
+		{
+			long offset = (long)band * target.rowsPerBand * width * 4;
+			int bytes = target.getRowsInBand(band) * width * 4;
+			
+			MappedByteBuffer pixelMap = channel.map(FileChannel.MapMode.READ_WRITE, offset, bytes);
+			MappedByteBuffer iterationMap = channel.map(FileChannel.MapMode.READ_WRITE, planeBytes + offset, bytes);
+			target.mappings[band] = pixelMap;
+			target.mappings[numOfBands + band] = iterationMap;
+			
+			target.pixelBands[band] = pixelMap.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			target.iterationBands[band] = iterationMap.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+		
+		return target;
+	}
+	
+	
+	
+	/**
+	 * @return the number of bytes taken by one plane (pixels or iterations) of a target
+	 */
+	public static long getPlaneBytes(int width, int height)
+	{
+		return (long)width * height * 4;
+	}
+	
+	
+	
+	@Override
+	public void setPixel(int x, int y, float iterations, int rgb)
+	{
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return; //chunks may hang over the edge of the target
+		
+		int band = y / rowsPerBand;
+		int index = (y - band * rowsPerBand) * width + x;
+		iterationBands[band].put(index, iterations);
+		pixelBands[band].put(index, rgb);
+	}
+	
+	
+	
+	@Override
+	public int getRGB(int x, int y)
+	{
+		int band = y / rowsPerBand;
+		return pixelBands[band].get((y - band * rowsPerBand) * width + x);
+	}
+	
+	
+	
+	@Override
+	public float getIterations(int x, int y)
+	{
+		int band = y / rowsPerBand;
+		return iterationBands[band].get((y - band * rowsPerBand) * width + x);
+	}
+	
+	
+	
+	@Override
+	public void getRow(int y, int[] rgbRow)
+	{
+		int band = y / rowsPerBand;
+		IntBuffer view = pixelBands[band].duplicate(); //so concurrent readers don't share a position
+		view.position((y - band * rowsPerBand) * width);
+		view.get(rgbRow, 0, width);
+	}
+	
+	
+	
+	/**
+	 * Writes any changes made to the target out to the disk.
+	 */
+	public void flush()
+	{
+		if (mappings != null)
+			for (MappedByteBuffer mapping : mappings)
+				mapping.force();
+	}
+	
+	
+	
+	@Override
+	public void close()
+	{
+		flush();
+		pixelBands = null;
+		iterationBands = null;
+		mappings = null;
+		
+		try
+		{
+			if (file != null)
+				file.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	
+	
+	/**
+	 * @return the number of rows held by the given band. Only the last one can be short.
+	 */
+	private int getRowsInBand(int band)
+	{
+		return Math.min(rowsPerBand, height - band * rowsPerBand);
+	}
+}
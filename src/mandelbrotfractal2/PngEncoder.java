@@ -0,0 +1,153 @@
+
+package mandelbrotfractal2;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A minimal PNG encoder that is fed one row of pixels at a time.
+ * Unlike ImageIO, it never needs the whole image in memory, so it can export
+ * renders that only exist off of the heap. Images are written as 8-bit RGB,
+ * using the Sub filter on every row, which suits the smooth gradients of fractals.
+ * @author Jesse Victors
+ */
+public class PngEncoder
+{
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int MAX_CHUNK_LENGTH = 1 << 16; //size of each IDAT chunk
+	
+	private DataOutputStream out;
+	private DeflaterOutputStream compressor;
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] rowBytes;
+	private int width, rowsRemaining;
+	
+	
+	/**
+	 * Writes the PNG header, after which exactly one call to writeRow
+	 * must be made for each row of the image, and then finish.
+	 * @param out the stream to write to
+	 * @param width the width of the image, in pixels
+	 * @param height the height of the image, in pixels
+	 * @throws IOException if the stream could not be written to
+	 */
+	public PngEncoder(OutputStream out, int width, int height) throws IOException
+	{
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		rowsRemaining = height;
+		rowBytes = new byte[1 + width * 3];
+		rowBytes[0] = 1; //the Sub filter
+		
+		this.out.write(SIGNATURE);
+		
+		byte[] header = new byte[13];
+		writeInt(header, 0, width);
+		writeInt(header, 4, height);
+		header[8] = 8; //bit depth
+		header[9] = 2; //truecolor, no alpha
+		writeChunk("IHDR", header, 0, header.length);
+		
+		compressor = new DeflaterOutputStream(new ChunkedStream(), deflater, MAX_CHUNK_LENGTH);
+	}
+	
+	
+	
+	/**
+	 * Encodes the next row of the image.
+	 * @param rgbRow the packed RGB values of the row
+	 * @throws IOException if the stream could not be written to
+	 */
+	public void writeRow(int[] rgbRow) throws IOException
+	{
+		if (rowsRemaining-- <= 0)
+			throw new IllegalStateException("All of the rows have already been written.");
+		
+		int prevRGB = 0;
+		for (int x = 0; x < width; x++)
+		{
+			int rgb = rgbRow[x];
+			int i = 1 + x * 3;
+			rowBytes[i]     = (byte)((rgb >> 16) - (prevRGB >> 16));
+			rowBytes[i + 1] = (byte)((rgb >> 8) - (prevRGB >> 8));
+			rowBytes[i + 2] = (byte)(rgb - prevRGB);
+			prevRGB = rgb;
+		}
+		
+		compressor.write(rowBytes);
+	}
+	
+	
+	
+	/**
+	 * Finishes the image. The underlying stream is flushed, but not closed.
+	 * @throws IOException if the stream could not be written to
+	 */
+	public void finish() throws IOException
+	{
+		if (rowsRemaining != 0)
+			throw new IllegalStateException(rowsRemaining + " rows have not been written yet.");
+		
+		compressor.finish();
+		deflater.end();
+		writeChunk("IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+	
+	
+	
+	private void writeChunk(String type, byte[] data, int offset, int length) throws IOException
+	{
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+		
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.writeInt((int)crc.getValue());
+	}
+	
+	
+	
+	private static void writeInt(byte[] bytes, int offset, int value)
+	{
+		bytes[offset]     = (byte)(value >>> 24);
+		bytes[offset + 1] = (byte)(value >>> 16);
+		bytes[offset + 2] = (byte)(value >>> 8);
+		bytes[offset + 3] = (byte)value;
+	}
+	
+	
+	
+	/**
+	 * Receives the compressed image data and wraps it in IDAT chunks.
+	 */
+	private class ChunkedStream extends OutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+		
+		
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0)
+			{
+				int length = Math.min(len, MAX_CHUNK_LENGTH);
+				writeChunk("IDAT", b, off, length);
+				off += length;
+				len -= length;
+			}
+		}
+	}
+}
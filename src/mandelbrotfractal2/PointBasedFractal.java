@@ -2,9 +2,16 @@
 package mandelbrotfractal2;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.Point;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -18,28 +25,114 @@ import javax.swing.event.ChangeListener;
  * therefore black. Without the optimization, there almost no additional work performed, 
  * but if the optimization can be performed,
  * it only has to do (24 * 4) / (24 ^ 2) = 16.66% (a sixth) of the work, a noticable speedup.
+ * Once a frame has been rendered, the cost of each chunk is carried over to the next frame,
+ * and the chunks are rendered from the most expensive to the least expensive. Chunks that
+ * are far more expensive than the rest are split into quarters, so that a single chunk
+ * can't keep one thread busy long after the others have run out of work.
+ * Fractals that are symmetric about the real axis (such as the Mandelbrot set) can say so
+ * by overriding isSymmetricAboutRealAxis. Then, wherever the view covers both sides of the
+ * axis, only one side is computed and the chunks on the other side are mirrored from it.
+ * Instead of chunks, the fractal can also be rendered by a BoundaryTracer, which traces the
+ * regions of the same iteration count across the whole screen (see setBoundaryTracing).
+ * Whenever the view changes, the frame already on the screen is reprojected onto the new view
+ * at once, so the user sees a (blurry or partial) preview of the new view before any of it is
+ * computed. When unzooming, the frame that was on the screen before zooming in is used instead.
+ * The chunks (or the BoundaryTracer's work) are rendered by the threads of the shared RenderScheduler
+ * rather than by threads of this fractal's own, so any number of fractals can be rendering at once
+ * (see setRenderWeight).
+ * Rendering by chunks can also color the frame by histogram equalization (see setHistogramColoring).
+ * Then the chunks are rendered twice: once to compute every point and count it into an
+ * IterationHistogram, coloring it by the distribution counted so far, and once more to
+ * recolor every pixel with the distribution of the whole frame.
  * @author Jesse Victors
  */
-public abstract class PointBasedFractal extends Fractal implements ChangeListener
+public abstract class PointBasedFractal extends Fractal implements ChangeListener, RenderScheduler.Renderer
 {
 	private LinkedBlockingQueue<Chunk> chunksToRender = new LinkedBlockingQueue<>();
 	private LinkedBlockingQueue<Chunk> allChunks = new LinkedBlockingQueue<>(); //backup used to refill chunksToRender
 	private ReentrantLock queueLocker = new ReentrantLock();
+	private AtomicInteger chunksInProgress = new AtomicInteger(); //chunks taken off the queue but not finished yet
+	private BitSet completedChunks = new BitSet(); //indexes of the chunks finished since the last restart, guarded by queueLocker
+	private int generation; //incremented on every restart, so chunks from a previous frame are not counted, guarded by queueLocker
+	private ChunkCosts costs; //the estimated and measured cost of each chunk
+	private int numOfChunksH; //the number of chunks in each column
+	private double mirrorAxis = Double.NaN; //the screen row of the real axis doubled, NaN if there's no symmetry to use
+	private RenderScheduler.Session session; //the connection to the threads that render the chunks, or null
+	private boolean boundaryTracing; //render with a BoundaryTracer instead of chunks? guarded by queueLocker
+	private BoundaryTracer tracer; //renders the current frame when boundary tracing, guarded by queueLocker
+	private FractalViewport frameViewport; //a copy of the viewport that the target is being rendered with
+	private FrameSnapshot snapshot, spareSnapshot; //the frame on the screen is copied into one and then the other, guarded by queueLocker
+	private LinkedList<FrameSnapshot> zoomLevels = new LinkedList<>(); //the frames that were zoomed in from, most recent first
+	private boolean histogramColoring; //color by histogram equalization? guarded by queueLocker
+	private volatile IterationHistogram histogram; //the histogram of the current frame, or null if not coloring by it
+	private boolean recoloring; //are the chunks in the queue being recolored rather than computed? guarded by queueLocker
+	
+	/** The iteration value of points that are inside the set. */
+	public static final float INSIDE = -1;
+	
+	private static final int SPLIT_FACTOR = 8; //chunks this many times more expensive than average are split
+	private static final int MAX_ZOOM_LEVELS = 4; //the number of frames kept around for unzooming
 	
 	
 	public PointBasedFractal(FractalViewport viewport)
 	{
 		super(viewport);
+		initChunks(null);
+	}
+	
+	
+	
+	public PointBasedFractal(FractalViewport viewport, RenderTarget target)
+	{
+		super(viewport, target);
+		initChunks(null);
+	}
+	
+	
+	
+	/**
+	 * Creates a fractal that resumes the render saved by the given checkpoint. The chunks that
+	 * were already finished are skipped before any of the chunks are rendered.
+	 * @param viewport the viewport to render, which must match the checkpoint's
+	 * @param target the target returned by the checkpoint's openTarget
+	 * @param checkpoint the checkpoint, which is started once the chunks are set up
+	 */
+	public PointBasedFractal(FractalViewport viewport, RenderTarget target, RenderCheckpoint checkpoint)
+	{
+		super(viewport, target);
+		initChunks(checkpoint);
+	}
+	
+	
+	
+	/**
+	 * Registers with the viewport, and fills the work queue with chunks covering the whole target.
+	 * @param checkpoint the checkpoint to start before the chunks are rendered, or null
+	 */
+	private void initChunks(RenderCheckpoint checkpoint)
+	{
 		viewport.setChangeListener(this);
 		
 		//initialize all the chunks, create the work queue
-		int numOfChunksW = 1 + viewport.getScreenSize().width / Chunk.SIZE; //may have overlap over edge of screen
-		int numOfChunksH = 1 + viewport.getScreenSize().height / Chunk.SIZE;
+		int numOfChunksW = 1 + target.getWidth() / Chunk.SIZE; //may have overlap over edge of screen
+		numOfChunksH = 1 + target.getHeight() / Chunk.SIZE;
 		for (int j = 0; j < numOfChunksW; j++)
 			for (int k = 0; k < numOfChunksH; k++)
-				allChunks.add(new Chunk(new Point(j * Chunk.SIZE, k * Chunk.SIZE)));
+				allChunks.add(new Chunk(allChunks.size(), new Point(j * Chunk.SIZE, k * Chunk.SIZE), Chunk.SIZE, null));
 		
-		chunksToRender.addAll(allChunks);
+		costs = new ChunkCosts(numOfChunksW, numOfChunksH, Chunk.SIZE);
+		
+		queueLocker.lock();
+		frameViewport = new FractalViewport(viewport, viewport.getScreenSize());
+		costs.startFrame(viewport);
+		mirrorAxis = computeMirrorAxis();
+		chunksToRender.addAll(scheduleChunks());
+		queueLocker.unlock();
+		
+		if (checkpoint != null)
+			checkpoint.start(this); //skips the chunks it already has
+		if (session != null)
+			session.wakeUp(); //the chunks are ready now
 	}
 	
 	
@@ -58,115 +151,781 @@ public abstract class PointBasedFractal extends Fractal implements ChangeListene
 	
 	
 	/**
-	 * Starts the rendering process. This thread returns very quickly, since it
-	 * simply starts a set of threads which do the actual rendering. The number
-	 * of rendering threads started is equal to the number of CPU processors
-	 * available to the JVM.
+	 * Starts the rendering process by registering with the shared RenderScheduler,
+	 * whose threads do the actual rendering. This is called before the chunks are set up,
+	 * so the scheduler isn't told that there is work to do until they are.
 	 */
 	@Override
 	public void startRendering()
 	{
-		int numProcessors = 2;//Runtime.getRuntime().availableProcessors();
-		for (int j = 0; j < numProcessors; j++)
-		{
-			Thread renderingThread = new Thread(new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					try
-					{
-						Graphics fractalGraphics = fractalImage.getGraphics();
-						
-						while (true)
-						{
-							if (chunksToRender == null || chunksToRender.isEmpty())
-								Thread.sleep(250);
-							else
-								renderChunks(fractalGraphics);
-						}
-							
-					}
-					catch (InterruptedException e)
-					{
-						e.printStackTrace();
-					}
-				}
-			});
-			
-			renderingThread.start();
-		}
+		session = RenderScheduler.getShared().register(this, 1);
 	}
 	
 	
 	
 	/**
-	 * Pulls a Chunk from the work queue and renders it.
+	 * Pulls a Chunk from the work queue and renders it, or does the next piece of work
+	 * of the BoundaryTracer when boundary tracing.
 	 * This function returns immediately if there is no work to be done.
+	 * It is called repeatedly by the RenderScheduler, but it can also be called
+	 * directly by a subclass that schedules the rendering itself.
+	 * @return true if a Chunk was rendered, false if the queue was empty
 	 */
-	private void renderChunks(Graphics fractalGraphics)
+	@Override
+	public boolean renderNextChunk()
 	{
+		BoundaryTracer currentTracer = getBoundaryTracer();
+		if (currentTracer != null)
+			return renderTracerPart(currentTracer);
+		
 		queueLocker.lock();
 		Chunk chunk = chunksToRender.poll();
+		int chunkGeneration = generation;
+		boolean recolor = recoloring;
+		IterationHistogram frameHistogram = histogram;
+		if (chunk != null)
+			chunksInProgress.incrementAndGet();
 		queueLocker.unlock();
 		
-		if (chunk != null)
-			chunk.render(fractalGraphics);
+		if (chunk == null)
+			return false;
+		
+		if (recolor)
+			chunk.recolor();
+		else
+		{
+			long startTime = System.nanoTime();
+			long[] cost = chunk.mirrored && chunk.isMirrorSourceComplete() ? chunk.mirror(frameHistogram) : chunk.render(frameHistogram);
+			long elapsedNanos = System.nanoTime() - startTime;
+			if (frameHistogram != null)
+				frameHistogram.flush();
+			
+			queueLocker.lock();
+			if (chunkGeneration == generation)
+				finishChunk(chunk, cost, elapsedNanos);
+			queueLocker.unlock();
+		}
+		
+		queueLocker.lock();
+		chunksInProgress.decrementAndGet();
+		boolean recolorQueued = startRecoloring();
+		queueLocker.unlock();
+		
+		if (recolorQueued && session != null)
+			session.wakeUp();
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Records the cost of a chunk that was just rendered and marks it as completed.
+	 * If the chunk is a quarter of a split chunk, its cost is added to the whole chunk,
+	 * which is only recorded and completed once all four quarters are done.
+	 * Mirrored chunks have no cost of their own, so their previous estimate is kept.
+	 * The queueLocker must be held when this is called.
+	 */
+	private void finishChunk(Chunk chunk, long[] cost, long nanos)
+	{
+		if (cost == null)
+		{
+			completedChunks.set(chunk.index);
+			return;
+		}
+		
+		long escapedIterations = cost[0], insidePixels = cost[1];
+		Chunk whole = chunk.parent;
+		if (whole != null)
+		{
+			whole.escapedIterations += escapedIterations;
+			whole.insidePixels += insidePixels;
+			whole.nanos += nanos;
+			if (--whole.partsRemaining > 0)
+				return;
+			
+			escapedIterations = whole.escapedIterations;
+			insidePixels = whole.insidePixels;
+			nanos = whole.nanos;
+		}
+		
+		costs.record(chunk.index, escapedIterations, insidePixels, nanos);
+		completedChunks.set(chunk.index);
+	}
+	
+	
+	
+	/**
+	 * Does the next piece of work of the BoundaryTracer instead of a Chunk. If that piece
+	 * finished the tracer's first phase, the scheduler is woken up, since threads that found
+	 * nothing to do while the last boundaries were being traced may have gone idle.
+	 * @return true if a piece of work was done
+	 */
+	private boolean renderTracerPart(BoundaryTracer currentTracer)
+	{
+		boolean wasFilling = currentTracer.isFilling();
+		boolean rendered = currentTracer.renderNextPart();
+		if (!wasFilling && currentTracer.isFilling() && session != null)
+			session.wakeUp();
+		return rendered;
 	}
 	
 	
 	
 	/**
-	 * Determines the appropriate color for the pixel at the given screen location,
-	 * paints it onto the given graphics object, and then returns the color.
+	 * Starts the second pass of histogram coloring if the first pass has just finished:
+	 * the distribution of the whole frame is computed, and every chunk is queued again
+	 * to be recolored with it. The queueLocker must be held when this is called.
+	 * @return true if the chunks were queued
+	 */
+	private boolean startRecoloring()
+	{
+		IterationHistogram frameHistogram = histogram;
+		if (frameHistogram == null || recoloring || !chunksToRender.isEmpty() || chunksInProgress.get() > 0)
+			return false;
+		
+		frameHistogram.updateDistribution();
+		recoloring = true;
+		chunksToRender.addAll(allChunks);
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Computes the iteration value for the pixel at the given screen location,
+	 * stores it and its color in the render target, and then returns the iteration value.
 	 * @param screenPixel the given location on the screen
-	 * @param g the graphics object to draw to
-	 * @return the color determined at screenPixel
+	 * @return the iteration value determined at screenPixel
 	 */
-	public Color colorPixel(Point screenPixel, Graphics g)
+	public float renderPixel(Point screenPixel)
 	{
 		Point.Double loc = viewport.convertToFractalLoc(screenPixel);
-		Color color = getColorAt(loc);
-		g.setColor(color);
-		g.drawLine(screenPixel.x, screenPixel.y, screenPixel.x, screenPixel.y);
-		return color;
+		float iterations = getIterationsAt(loc);
+		target.setPixel(screenPixel.x, screenPixel.y, iterations, getRGB(iterations));
+		return iterations;
 	}
 	
 	
 	
 	/**
 	 * Restarts the rendering of the fractal back to the beginning.
-	 * All rendering threads will finish whatever they are doing (either rendering or sleeping)
-	 * and then they will start working on the first bunch of Chunks.
+	 * Chunks of the old view that are still being rendered are finished but not counted,
+	 * and then the RenderScheduler starts on the most expensive Chunks of the new view.
 	 */
 	public void restartRendering()
 	{
 		queueLocker.lock();
 		
+		generation++;
 		chunksToRender.clear();
-		chunksToRender.addAll(allChunks);
+		completedChunks.clear();
+		recoloring = false;
+		FrameSnapshot preview = showPreview(); //recolored with the previous frame's histogram, if any
+		histogram = histogramColoring && !boundaryTracing ? new IterationHistogram(viewport.getMaxIterations()) : null;
+		
+		if (tracer != null)
+			tracer.cancel();
+		tracer = null;
+		
+		if (boundaryTracing)
+		{
+			tracer = new BoundaryTracer(this, target, viewport);
+		}
+		else
+		{
+			costs.startFrame(viewport);
+			if (preview != null && preview.getPixelSize() != viewport.getPixelSize())
+				estimateCostsFromPreview(preview); //the preview has more detail than the carried over costs
+			mirrorAxis = computeMirrorAxis();
+			chunksToRender.addAll(scheduleChunks());
+		}
+		
+		queueLocker.unlock();
+		
+		if (session != null)
+			session.wakeUp();
+	}
+	
+	
+	
+	/**
+	 * Reprojects the frame on the screen (or, when unzooming, the frame that was zoomed in
+	 * from) onto the new view, so the user sees the new view straight away. When zooming in,
+	 * the frame on the screen is kept so that unzooming can go back to it. Nothing is done
+	 * for targets that aren't displayed, since a copy of them could be enormous.
+	 * When panning, the pixels are just moved within the target, without a snapshot. Otherwise
+	 * the frame is copied into whichever of the two preallocated snapshots wasn't used last time.
+	 * A snapshot kept for unzooming is taken out of the pair, and the oldest zoom level that falls
+	 * off the list takes its place, so once the list is full changing the view allocates nothing.
+	 * @return the snapshot that the preview was made from, or null if none was needed
+	 */
+	private FrameSnapshot showPreview()
+	{
+		if (target.getImage() == null)
+			return null;
+		
+		if (viewport.getPixelSize() == frameViewport.getPixelSize() && viewport.getColoring() == frameViewport.getColoring())
+		{ //a pan (or a change that doesn't move the pixels at all), which can't return to a zoom level
+			Point.Double offset = frameViewport.convertToScreenLoc(viewport.convertToFractalLoc(new Point(0, 0)));
+			target.shift((int)Math.round(offset.x), (int)Math.round(offset.y));
+			frameViewport = new FractalViewport(viewport, viewport.getScreenSize());
+			return null;
+		}
+		
+		if (snapshot == null)
+		{
+			snapshot = new FrameSnapshot(target.getWidth(), target.getHeight());
+			spareSnapshot = new FrameSnapshot(target.getWidth(), target.getHeight());
+		}
+		
+		FrameSnapshot current = spareSnapshot;
+		spareSnapshot = snapshot;
+		snapshot = current;
+		current.copyFrom(target, frameViewport);
+		FrameSnapshot preview = current;
+		Iterator<FrameSnapshot> iterator = zoomLevels.iterator();
+		while (iterator.hasNext())
+		{
+			FrameSnapshot zoomLevel = iterator.next();
+			if (zoomLevel.isSameView(viewport))
+			{
+				preview = zoomLevel;
+				while (zoomLevels.getFirst() != zoomLevel)
+					zoomLevels.removeFirst(); //those levels were zoomed in from this one
+				zoomLevels.removeFirst();
+				break;
+			}
+		}
+		
+		if (viewport.getPixelSize() < frameViewport.getPixelSize())
+		{
+			zoomLevels.addFirst(current); //current leaves the pair, and is replaced by the oldest level if there's one to spare
+			snapshot = zoomLevels.size() > MAX_ZOOM_LEVELS ? zoomLevels.removeLast() : new FrameSnapshot(target.getWidth(), target.getHeight());
+		}
+		
+		preview.reproject(target, viewport, this);
+		frameViewport = new FractalViewport(viewport, viewport.getScreenSize());
+		return preview;
+	}
+	
+	
+	
+	/**
+	 * Replaces the carried over cost estimates with estimates made from the preview,
+	 * for every chunk that the preview covers.
+	 */
+	private void estimateCostsFromPreview(FrameSnapshot preview)
+	{
+		for (Chunk chunk : allChunks)
+		{
+			long[] estimate = preview.estimateCost(chunk.origin.x, chunk.origin.y, chunk.size, viewport);
+			if (estimate != null)
+				costs.setEstimate(chunk.index, estimate[0], estimate[1]);
+		}
+	}
+	
+	
+	
+	/**
+	 * Switches between rendering by chunks and rendering with a BoundaryTracer,
+	 * and then restarts the rendering. Boundary tracing computes far fewer pixels on
+	 * views with little detail, but colors by whole iteration counts, so it's banded.
+	 * @param enabled true to render with a BoundaryTracer, false to render by chunks
+	 */
+	public void setBoundaryTracing(boolean enabled)
+	{
+		queueLocker.lock();
+		boundaryTracing = enabled;
+		queueLocker.unlock();
+		
+		restartRendering();
+	}
+	
+	
+	
+	/**
+	 * Switches between coloring by histogram equalization and the usual cyclic gradient,
+	 * and then restarts the rendering. Histogram equalization picks the colors by how
+	 * common each iteration value is in the frame, so the palette fits every view without
+	 * adjusting the coloring coefficient. It only applies when rendering by chunks.
+	 * @param enabled true to color by histogram equalization
+	 */
+	public void setHistogramColoring(boolean enabled)
+	{
+		queueLocker.lock();
+		histogramColoring = enabled;
+		queueLocker.unlock();
+		
+		restartRendering();
+	}
+	
+	
+	
+	/**
+	 * @return true if the fractal is colored by histogram equalization when rendering by chunks
+	 */
+	public boolean isHistogramColoring()
+	{
+		queueLocker.lock();
+		boolean enabled = histogramColoring;
+		queueLocker.unlock();
+		return enabled;
+	}
+	
+	
+	
+	/**
+	 * @return true if the fractal is being rendered with a BoundaryTracer rather than by chunks
+	 */
+	public boolean isBoundaryTracing()
+	{
+		queueLocker.lock();
+		boolean tracing = boundaryTracing;
+		queueLocker.unlock();
+		return tracing;
+	}
+	
+	
+	
+	/**
+	 * A point on screen row y mirrors onto row (mirrorAxis - y), which may fall between two rows.
+	 * @return the mirror axis of the current view, or NaN if the fractal isn't
+	 * symmetric about the real axis or the view doesn't cover both sides of it
+	 */
+	private double computeMirrorAxis()
+	{
+		if (!isSymmetricAboutRealAxis())
+			return Double.NaN;
+		
+		double axis = 2 * viewport.convertToScreenLoc(new Point.Double(0, 0)).y;
+		if (axis <= 0 || axis >= 2 * (target.getHeight() - 1))
+			return Double.NaN;
+		if (Math.abs(axis - Math.rint(axis)) < 1e-6)
+			axis = Math.rint(axis); //then the rows line up exactly, so mirroring is a plain copy
+		return axis;
+	}
+	
+	
+	
+	/**
+	 * @return true if the row is on the far side of the real axis and
+	 * its mirror image lies entirely within the target
+	 */
+	private boolean isMirroredRow(int y)
+	{
+		double source = mirrorAxis - y;
+		return source < y && source >= 0 && Math.ceil(source) <= target.getHeight() - 1; //false if mirrorAxis is NaN
+	}
+	
+	
+	
+	/**
+	 * Orders the chunks from the highest estimated cost to the lowest (longest processing
+	 * time first), splitting up the chunks whose cost is far above average. Chunks with an
+	 * unknown cost are assumed to be average. If no costs are known at all, the chunks
+	 * are left in their usual order. Chunks that can be mirrored cost next to nothing,
+	 * so they always go last, after the chunks that they are mirrored from.
+	 * @return the chunks to render, in the order they should be rendered
+	 */
+	private List<Chunk> scheduleChunks()
+	{
+		List<Chunk> mirroredChunks = new ArrayList<>();
+		long totalEstimate = 0;
+		int numOfEstimates = 0;
+		for (Chunk chunk : allChunks)
+		{
+			chunk.mirrored = chunk.isMirrored();
+			if (chunk.mirrored)
+			{
+				mirroredChunks.add(chunk);
+				continue;
+			}
+			
+			chunk.estimate = costs.getEstimate(chunk.index);
+			if (chunk.estimate >= 0)
+			{
+				totalEstimate += chunk.estimate;
+				numOfEstimates++;
+			}
+		}
 		
+		List<Chunk> scheduled = new ArrayList<>(allChunks.size());
+		if (numOfEstimates == 0)
+		{
+			for (Chunk chunk : allChunks)
+				if (!chunk.mirrored)
+					scheduled.add(chunk);
+			scheduled.addAll(mirroredChunks);
+			return scheduled;
+		}
+		
+		long meanEstimate = totalEstimate / numOfEstimates;
+		for (Chunk chunk : allChunks)
+		{
+			if (chunk.mirrored)
+				continue;
+			
+			if (chunk.estimate < 0)
+				chunk.estimate = meanEstimate;
+			
+			if (chunk.estimate > SPLIT_FACTOR * Math.max(1, meanEstimate))
+				scheduled.addAll(chunk.split());
+			else
+				scheduled.add(chunk);
+		}
+		
+		Collections.sort(scheduled, new Comparator<Chunk>()
+		{
+			@Override
+			public int compare(Chunk a, Chunk b)
+			{
+				return Long.compare(b.estimate, a.estimate); //most expensive first
+			}
+		});
+		scheduled.addAll(mirroredChunks);
+		return scheduled;
+	}
+	
+	
+	
+	/**
+	 * @return the BoundaryTracer rendering the current frame, or null if rendering by chunks
+	 */
+	public BoundaryTracer getBoundaryTracer()
+	{
+		queueLocker.lock();
+		BoundaryTracer currentTracer = tracer;
+		queueLocker.unlock();
+		return currentTracer;
+	}
+	
+	
+	
+	/**
+	 * @return the number of chunks that the target is divided into
+	 */
+	public int getChunkCount()
+	{
+		return allChunks.size();
+	}
+	
+	
+	
+	/**
+	 * @return a snapshot of the indexes of the chunks that have been
+	 * completely rendered since rendering was last restarted
+	 */
+	public BitSet getCompletedChunks()
+	{
+		queueLocker.lock();
+		BitSet completed = (BitSet)completedChunks.clone();
 		queueLocker.unlock();
+		return completed;
 	}
 	
 	
 	
-	public abstract Color getColorAt(Point.Double pt);
+	/**
+	 * Removes the given chunks from the work queue and marks them as completed,
+	 * because their pixels are already in the render target. This is used
+	 * to resume a render that was interrupted, before the chunks are rendered.
+	 * @param chunkIndexes the indexes of the chunks that are already rendered
+	 */
+	public void skipChunks(BitSet chunkIndexes)
+	{
+		queueLocker.lock();
+		
+		Iterator<Chunk> iterator = chunksToRender.iterator();
+		while (iterator.hasNext())
+			if (chunkIndexes.get(iterator.next().index))
+				iterator.remove();
+		completedChunks.or(chunkIndexes);
+		
+		queueLocker.unlock();
+	}
+	
+	
+	
+	/**
+	 * @return true if every chunk of the current view has been rendered
+	 */
+	public boolean isRenderingComplete()
+	{
+		queueLocker.lock();
+		boolean complete = chunksToRender.isEmpty() && chunksInProgress.get() == 0 && (tracer == null || tracer.isFinished());
+		queueLocker.unlock();
+		return complete;
+	}
+	
+	
+	
+	/**
+	 * Blocks until every chunk of the current view has been rendered.
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public void waitUntilRendered() throws InterruptedException
+	{
+		while (!isRenderingComplete())
+			Thread.sleep(250);
+	}
+	
+	
+	
+	/**
+	 * Cancels the BoundaryTracer if there is one, and then removes this fractal from the
+	 * RenderScheduler, waiting for any of its chunks that are being rendered to finish.
+	 * The tracer is cancelled first so that a long boundary trace stops at once rather
+	 * than keeping the caller waiting. Rendering cannot be resumed afterwards.
+	 */
+	@Override
+	public void stopRendering()
+	{
+		queueLocker.lock();
+		if (tracer != null)
+			tracer.cancel();
+		queueLocker.unlock();
+		
+		if (session != null)
+			session.close();
+	}
+	
+	
+	
+	/**
+	 * Changes the share of the RenderScheduler's threads that this fractal gets when several
+	 * fractals are rendering at once. A fractal with twice the weight gets twice the share.
+	 * @param weight the share relative to the other fractals, 1 by default
+	 */
+	public void setRenderWeight(int weight)
+	{
+		if (session != null)
+			session.setWeight(weight);
+	}
+	
+	
+	
+	/**
+	 * Subclasses should override this if getIterationsAt(x, y) always equals
+	 * getIterationsAt(x, -y), so that half of the work can be skipped when both
+	 * sides of the real axis are visible.
+	 * @return true if the fractal is symmetric about the real axis, false by default
+	 */
+	public boolean isSymmetricAboutRealAxis()
+	{
+		return false;
+	}
+	
+	
+	
+	/**
+	 * @return the color at the specified point in the fractal
+	 */
+	public Color getColorAt(Point.Double pt)
+	{
+		return new Color(getRGB(getIterationsAt(pt)));
+	}
+	
+	
+	
+	/**
+	 * Computes the (possibly fractional) number of iterations it took the
+	 * specified point in the fractal to escape.
+	 * @param pt the specified location in the fractal
+	 * @return an iteration value, which can be a little below 0 far from the fractal but
+	 * is never equal to INSIDE, or INSIDE if the point never escaped
+	 */
+	public abstract float getIterationsAt(Point.Double pt);
+	
+	
+	
+	/**
+	 * Maps an iteration value to a color. By default, the sine and cosine functions are
+	 * applied on top of the iteration value to generate a smooth cyclic gradient.
+	 * When coloring by histogram equalization, they are applied on top of the fraction of
+	 * the frame that escaped sooner instead, and the coloring variable sets how many half
+	 * cycles of the gradient that spans. Points inside the set are black.
+	 * @param iterations a value returned by getIterationsAt
+	 * @return the packed RGB color for that value using the coloring variable from the viewport
+	 */
+	public int getRGB(float iterations)
+	{
+		IterationHistogram frameHistogram = histogram;
+		if (frameHistogram == null || iterations == INSIDE)
+			return getCyclicRGB(iterations, viewport.getColoring());
+		
+		float level = frameHistogram.getLevel(iterations);
+		return getGradientRGB(Float.isNaN(level) ? 0 : level * Math.PI * viewport.getColoring());
+	}
+	
+	
+	
+	/**
+	 * The default coloring, which needs nothing but the iteration value and the
+	 * coloring coefficient, so that saved iteration values can be colored without a fractal.
+	 * @param iterations a value returned by getIterationsAt
+	 * @param coloring the coloring coefficient
+	 * @return the packed RGB color of the smooth cyclic gradient, or black for points inside the set
+	 */
+	public static int getCyclicRGB(float iterations, double coloring)
+	{
+		if (iterations == INSIDE)
+			return 0;
+		return getGradientRGB(iterations / coloring);
+	}
+	
+	
+	
+	/**
+	 * @param angle the position along the gradient, which repeats every 2 pi
+	 * @return the packed RGB color at that position
+	 */
+	private static int getGradientRGB(double angle)
+	{
+		float sin = (float)Math.sin(angle) / 2 + 0.5f;
+		float cos = (float)Math.cos(angle) / 2 + 0.5f;
+		int red = (int)(cos * 255 + 0.5), blue = (int)(sin * 255 + 0.5);
+		return (red << 16) | (red << 8) | blue;
+	}
 	
 	
 	
 	private class Chunk
 	{
 		private static final int SIZE = 24; //24 seems to work well, 32 is also another option
+		private int index; //the position of this Chunk (or the Chunk it is a quarter of) in allChunks
 		private Point origin; //the upper left-hand corner of this Chunk
+		private int size; //the width and height of this Chunk, SIZE unless it is a quarter
+		private Chunk parent; //the Chunk that this is a quarter of, or null
 		
+		private long estimate; //the estimated cost, used for scheduling
+		private long escapedIterations, insidePixels, nanos; //the cost of the quarters rendered so far if this Chunk was split
+		private int partsRemaining; //the quarters not yet rendered if this Chunk was split
+		private boolean mirrored; //can this Chunk be mirrored from the other side of the real axis in this frame?
 		
-		public Chunk(Point origin)
+		
+		public Chunk(int index, Point origin, int size, Chunk parent)
 		{
+			this.index = index;
 			this.origin = origin;
+			this.size = size;
+			this.parent = parent;
+		}
+		
+		
+		
+		/**
+		 * Splits this Chunk into four quarters, which are rendered in its place.
+		 * @return the quarters, each with a quarter of the estimated cost
+		 */
+		public List<Chunk> split()
+		{
+			escapedIterations = insidePixels = nanos = 0;
+			partsRemaining = 4;
+			
+			int half = size / 2;
+			List<Chunk> quarters = new ArrayList<>(4);
+			for (int j = 0; j < 2; j++)
+			{
+				for (int k = 0; k < 2; k++)
+				{
+					Point quarterOrigin = new Point(origin.x + j * half, origin.y + k * half);
+					Chunk quarter = new Chunk(index, quarterOrigin, half, this);
+					quarter.estimate = estimate / 4;
+					quarters.add(quarter);
+				}
+			}
+			
+			return quarters;
+		}
+		
+		
+		/**
+		 * @return true if every row of this Chunk that is within the target
+		 * is the mirror image of a row on the other side of the real axis
+		 */
+		public boolean isMirrored()
+		{
+			int maxY = Math.min(origin.y + size, target.getHeight());
+			for (int y = origin.y; y < maxY; y++)
+				if (!isMirroredRow(y))
+					return false;
+			return maxY > origin.y;
+		}
+		
+		
+		
+		/**
+		 * @return true if the chunks holding the mirror image of this Chunk have all
+		 * been rendered. If they haven't, this Chunk has to be computed after all.
+		 */
+		public boolean isMirrorSourceComplete()
+		{
+			int maxY = Math.min(origin.y + size, target.getHeight()) - 1;
+			int minSourceChunk = (int)Math.floor(mirrorAxis - maxY) / SIZE;
+			int maxSourceChunk = (int)Math.ceil(mirrorAxis - origin.y) / SIZE;
+			int column = origin.x / SIZE;
+			
+			queueLocker.lock();
+			boolean complete = true;
+			for (int k = minSourceChunk; k <= maxSourceChunk; k++)
+				if (!completedChunks.get(column * numOfChunksH + k))
+					complete = false;
+			queueLocker.unlock();
+			return complete;
+		}
+		
+		
+		
+		/**
+		 * Fills this Chunk with the mirror image of the other side of the real axis.
+		 * If the rows line up, the pixels are copied. Otherwise each pixel lies between two
+		 * rows, and its iteration value is interpolated between them, unless either one is
+		 * inside the set, in which case the nearer one is used.
+		 * @param frameHistogram counts the mirrored values, or null
+		 * @return null, since no points were computed
+		 */
+		public long[] mirror(IterationHistogram frameHistogram)
+		{
+			int maxX = Math.min(origin.x + size, target.getWidth());
+			int maxY = Math.min(origin.y + size, target.getHeight());
+			for (int y = origin.y; y < maxY; y++)
+			{
+				double source = mirrorAxis - y;
+				int sourceY = (int)Math.floor(source);
+				double fraction = source - sourceY;
+				
+				for (int x = origin.x; x < maxX; x++)
+				{
+					float iterations;
+					if (fraction == 0)
+					{
+						iterations = target.getIterations(x, sourceY);
+						target.setPixel(x, y, iterations, target.getRGB(x, sourceY));
+					}
+					else
+					{
+						float above = target.getIterations(x, sourceY), below = target.getIterations(x, sourceY + 1);
+						if (above == INSIDE || below == INSIDE)
+							iterations = fraction < 0.5 ? above : below;
+						else
+						{
+							iterations = (float)(above + (below - above) * fraction);
+							if (iterations == INSIDE)
+								iterations = Math.nextUp(INSIDE); //far from the set both can be below 0
+						}
+						target.setPixel(x, y, iterations, getRGB(iterations));
+					}
+					
+					if (frameHistogram != null)
+						frameHistogram.add(iterations);
+				}
+			}
+			
+			return null;
 		}
 		
 		
+		
 		/**
 		 * Renders this chunk of pixels.
 		 * This applies the Internal Area optimization, wherein if the entire
@@ -174,40 +933,42 @@ public abstract class PointBasedFractal extends Fractal implements ChangeListene
 		 * need not be computed because they are black too. However, if the
 		 * perimeter doesn't consist of all black pixels, then the inner pixels
 		 * are computed individually. So it just works smarter, not harder.
-		 * @param fractalGraphics the Graphics to draw onto
+		 * @param frameHistogram counts the computed values, or null
+		 * @return the cost of the chunk: the iterations computed for points that escaped,
+		 * and the number of points computed that were inside the set
 		 */
-		public void render(Graphics fractalGraphics)
+		public long[] render(IterationHistogram frameHistogram)
 		{
+			long[] tally = new long[2];
 			boolean boundaryIsBlack = true;
 			Point pt = new Point();
 
 			pt.y = origin.y; //scan top
-			if (!checkHoriz(origin, pt, fractalGraphics))
+			if (!checkHoriz(origin, pt, tally, frameHistogram))
 				boundaryIsBlack = false;
 
-			pt.y = origin.y + SIZE - 1; //scan bottom
-			if (!checkHoriz(origin, pt, fractalGraphics))
+			pt.y = origin.y + size - 1; //scan bottom
+			if (!checkHoriz(origin, pt, tally, frameHistogram))
 				boundaryIsBlack = false;
 
 			pt.x = origin.x; //scan left side
-			if (!checkVert(origin, pt, fractalGraphics))
+			if (!checkVert(origin, pt, tally, frameHistogram))
 				boundaryIsBlack = false;
 
-			pt.x = origin.x + SIZE - 1; //scan right side
-			if (!checkVert(origin, pt, fractalGraphics))
+			pt.x = origin.x + size - 1; //scan right side
+			if (!checkVert(origin, pt, tally, frameHistogram))
 				boundaryIsBlack = false;
 
 			if (boundaryIsBlack)
-			{
-				fractalGraphics.setColor(Color.BLACK);
-				fractalGraphics.fillRect(origin.x + 1, origin.y + 1, SIZE - 2, SIZE - 2);
-			}
+				target.fill(origin.x + 1, origin.y + 1, size - 2, size - 2, INSIDE, getRGB(INSIDE));
 			else
 			{
-				for (pt.x = origin.x + 1; pt.x < origin.x + SIZE - 1; pt.x++)
-					for (pt.y = origin.y + 1; pt.y < origin.y + SIZE - 1; pt.y++)
-						colorPixel(pt, fractalGraphics);
+				for (pt.x = origin.x + 1; pt.x < origin.x + size - 1; pt.x++)
+					for (pt.y = origin.y + 1; pt.y < origin.y + size - 1; pt.y++)
+						renderPixel(pt, tally, frameHistogram);
 			}
+			
+			return tally;
 		}
 		
 		
@@ -215,11 +976,11 @@ public abstract class PointBasedFractal extends Fractal implements ChangeListene
 		/**
 		 * Scans horizontally down the side of a chunk of pixels.
 		 */
-		private boolean checkHoriz(Point origin, Point pt, Graphics graphics)
+		private boolean checkHoriz(Point origin, Point pt, long[] tally, IterationHistogram frameHistogram)
 		{
 			boolean allBlack = true;
-			for (pt.x = origin.x + 1; pt.x < origin.x + SIZE - 1; pt.x++)
-				if (colorPixel(pt, graphics) != Color.BLACK)
+			for (pt.x = origin.x + 1; pt.x < origin.x + size - 1; pt.x++)
+				if (renderPixel(pt, tally, frameHistogram) != INSIDE)
 					allBlack = false;
 			return allBlack;
 		}
@@ -229,13 +990,52 @@ public abstract class PointBasedFractal extends Fractal implements ChangeListene
 		/**
 		 * Scans vertically down the side of a chunk of pixels.
 		 */
-		private boolean checkVert(Point origin, Point pt, Graphics graphics)
+		private boolean checkVert(Point origin, Point pt, long[] tally, IterationHistogram frameHistogram)
 		{
 			boolean allBlack = true;
-			for (pt.y = origin.y; pt.y < origin.y + SIZE; pt.y++)
-				if (colorPixel(pt, graphics) != Color.BLACK)
+			for (pt.y = origin.y; pt.y < origin.y + size; pt.y++)
+				if (renderPixel(pt, tally, frameHistogram) != INSIDE)
 					allBlack = false;
 			return allBlack;
 		}
+		
+		
+		
+		/**
+		 * Renders a pixel, adds its cost to the tally, and counts it into the histogram if there is one.
+		 * A point that escaped costs about as many iterations as its iteration value.
+		 */
+		private float renderPixel(Point pt, long[] tally, IterationHistogram frameHistogram)
+		{
+			float iterations = PointBasedFractal.this.renderPixel(pt);
+			if (iterations == INSIDE)
+				tally[1]++;
+			else
+				tally[0] += (long)iterations + 1;
+			
+			if (frameHistogram != null)
+				frameHistogram.add(iterations);
+			return iterations;
+		}
+		
+		
+		
+		/**
+		 * Recolors the pixels of this Chunk from their iteration values,
+		 * which were computed in the first pass of histogram coloring.
+		 */
+		public void recolor()
+		{
+			int maxX = Math.min(origin.x + size, target.getWidth());
+			int maxY = Math.min(origin.y + size, target.getHeight());
+			for (int y = origin.y; y < maxY; y++)
+			{
+				for (int x = origin.x; x < maxX; x++)
+				{
+					float iterations = target.getIterations(x, y);
+					target.setPixel(x, y, iterations, getRGB(iterations));
+				}
+			}
+		}
 	}
 }
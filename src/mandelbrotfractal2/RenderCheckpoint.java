@@ -0,0 +1,232 @@
+
+package mandelbrotfractal2;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Properties;
+
+/**
+ * Periodically saves the progress of a long render so that it can be resumed
+ * if the process is killed. The pixels themselves are rendered straight into a
+ * memory-mapped file, and each checkpoint flushes that file to the disk and then
+ * writes a manifest next to it. The manifest records the view and the parameters
+ * of the render, along with which chunks were finished when the pixels were flushed.
+ * When a render is started with the same parameters as an existing manifest,
+ * the finished chunks are skipped and only the remaining work is done.
+ * @author Jesse Victors
+ */
+public class RenderCheckpoint implements Runnable
+{
+	private static final long INTERVAL = 60 * 1000; //time between checkpoints, in milliseconds
+	
+	private File dataFile, manifestFile;
+	private Properties parameters; //everything that must match for a render to be resumed
+	private OffHeapRenderTarget target;
+	private PointBasedFractal fractal;
+	private Thread checkpointThread;
+	
+	
+	/**
+	 * Creates a checkpoint for a render of the given viewport, stored in two files
+	 * named after the given base: one ending in .raw for the pixels and another
+	 * ending in .manifest for the progress.
+	 * @param baseName the path and name of the checkpoint files, without an extension
+	 * @param viewport the viewport being rendered, sized to the render rather than the screen
+	 * @param fractalClass the class of the fractal being rendered
+	 */
+	public RenderCheckpoint(String baseName, FractalViewport viewport, Class<? extends PointBasedFractal> fractalClass)
+	{
+		dataFile = new File(baseName + ".raw");
+		manifestFile = new File(baseName + ".manifest");
+		
+		Rectangle.Double view = viewport.getFractalViewport();
+		parameters = new Properties();
+		parameters.setProperty("fractal", fractalClass.getName());
+		parameters.setProperty("width", Integer.toString(viewport.getScreenSize().width));
+		parameters.setProperty("height", Integer.toString(viewport.getScreenSize().height));
+		parameters.setProperty("view", view.x + "," + view.y + "," + view.width + "," + view.height);
+		parameters.setProperty("maxIterations", Integer.toString(viewport.getMaxIterations()));
+		parameters.setProperty("coloring", Double.toString(viewport.getColoring()));
+	}
+	
+	
+	
+	/**
+	 * Maps the checkpoint's data file into memory, keeping whatever a previous run left in it.
+	 * @return the target that the fractal should be rendered onto
+	 * @throws IOException if the file could not be opened or mapped
+	 */
+	public OffHeapRenderTarget openTarget() throws IOException
+	{
+		target = OffHeapRenderTarget.mapFile(dataFile,
+				Integer.parseInt(parameters.getProperty("width")), Integer.parseInt(parameters.getProperty("height")));
+		return target;
+	}
+	
+	
+	
+	/**
+	 * Skips the chunks that a previous run already finished, if its manifest matches
+	 * this render, and then starts checkpointing the given fractal in the background.
+	 * This is called by the fractal itself once its chunks are set up but before any
+	 * are rendered, so a finished chunk is never rendered again.
+	 * @param fractal the fractal that is being rendered onto the target from openTarget
+	 */
+	public void start(PointBasedFractal fractal)
+	{
+		this.fractal = fractal;
+		parameters.setProperty("chunks", Integer.toString(fractal.getChunkCount()));
+		
+		BitSet completed = loadCompletedChunks();
+		if (completed != null)
+			fractal.skipChunks(completed);
+		
+		checkpointThread = new Thread(this);
+		checkpointThread.setDaemon(true);
+		checkpointThread.start();
+	}
+	
+	
+	
+	/**
+	 * The function that is run by the thread.
+	 * Saves a checkpoint every INTERVAL milliseconds until stop is called.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				Thread.sleep(INTERVAL);
+				checkpoint();
+			}
+		}
+		catch (InterruptedException e)
+		{ } //stopped
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	
+	
+	/**
+	 * Saves the progress of the render. The set of finished chunks is taken before
+	 * the pixels are flushed, so the manifest never claims more than what is on disk.
+	 * The manifest is written to a temporary file first and then moved into place,
+	 * so a kill during a checkpoint leaves the previous checkpoint intact.
+	 * @throws IOException if the manifest could not be written
+	 */
+	public synchronized void checkpoint() throws IOException
+	{
+		BitSet completed = fractal.getCompletedChunks();
+		target.flush();
+		
+		Properties manifest = new Properties();
+		manifest.putAll(parameters);
+		manifest.setProperty("completed", encode(completed));
+		
+		File tempFile = new File(manifestFile.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(tempFile))
+		{
+			manifest.store(out, "Render checkpoint: " + completed.cardinality() + " of " + fractal.getChunkCount() + " chunks");
+		}
+		Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	
+	/**
+	 * Stops checkpointing, and saves one last checkpoint.
+	 * @throws IOException if the manifest could not be written
+	 */
+	public void stop() throws IOException
+	{
+		checkpointThread.interrupt();
+		checkpoint();
+	}
+	
+	
+	
+	/**
+	 * Deletes the checkpoint files. This should be done once the
+	 * render has been exported and the target has been closed.
+	 */
+	public void delete()
+	{
+		manifestFile.delete();
+		dataFile.delete();
+	}
+	
+	
+	
+	/**
+	 * @return the chunks finished by a previous run of this same render,
+	 * or null if there is no manifest or it was made for a different render
+	 */
+	private BitSet loadCompletedChunks()
+	{
+		if (!manifestFile.exists())
+			return null;
+		
+		Properties manifest = new Properties();
+		try (InputStream in = new FileInputStream(manifestFile))
+		{
+			manifest.load(in);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		
+		for (String key : parameters.stringPropertyNames())
+			if (!parameters.getProperty(key).equals(manifest.getProperty(key)))
+				return null;
+		
+		return decode(manifest.getProperty("completed", ""));
+	}
+	
+	
+	
+	/**
+	 * @return the set of chunks as comma-separated hexadecimal words
+	 */
+	private static String encode(BitSet chunks)
+	{
+		StringBuilder builder = new StringBuilder();
+		for (long word : chunks.toLongArray())
+		{
+			if (builder.length() > 0)
+				builder.append(',');
+			builder.append(Long.toHexString(word));
+		}
+		return builder.toString();
+	}
+	
+	
+	
+	private static BitSet decode(String words)
+	{
+		if (words.isEmpty())
+			return new BitSet();
+		
+		String[] hexWords = words.split(",");
+		long[] longs = new long[hexWords.length];
+		for (int j = 0; j < hexWords.length; j++)
+			longs[j] = new BigInteger(hexWords[j], 16).longValue(); //the words are unsigned
+		return BitSet.valueOf(longs);
+	}
+}
@@ -0,0 +1,265 @@
+
+package mandelbrotfractal2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of rendering threads shared by every PointBasedFractal (and any other
+ * Renderer, such as the BuddhabrotFractal), so that creating more fractals (split screens,
+ * thumbnails, several sessions at once) doesn't create more threads than there are cores to run them.
+ * Each fractal registers a Session, and the threads take one chunk at a time from
+ * whichever Session has work and has received the least rendering time for its weight,
+ * so a Session with twice the weight gets about twice the share of the threads. The time
+ * is measured rather than counted in chunks, since chunks can differ in cost a great deal.
+ * A Session that runs out of work doesn't save up time while it is idle, so when it gets
+ * new work it takes its fair share from then on rather than starving the other Sessions.
+ * @author Jesse Victors
+ */
+public class RenderScheduler
+{
+	/** The number of threads that render at once, which every kind of rendering is sized from. */
+	public static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	private static RenderScheduler shared; //used by every fractal unless told otherwise
+	
+	private List<Session> sessions = new ArrayList<>(); //guarded by locker
+	private ReentrantLock locker = new ReentrantLock();
+	private Condition workAvailable = locker.newCondition(); //signalled when a Session gets new work
+	private Condition chunkFinished = locker.newCondition(); //signalled whenever a thread finishes a chunk
+	
+	
+	/**
+	 * Creates a scheduler and starts its threads. The threads don't keep the application alive.
+	 * @param numThreads the number of chunks that may be rendered at once, across every Session
+	 */
+	public RenderScheduler(int numThreads)
+	{
+		for (int j = 0; j < numThreads; j++)
+		{
+			Thread renderingThread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while (true)
+						{
+							try
+							{
+								renderNextChunk();
+							}
+							catch (RuntimeException e)
+							{ //a broken fractal shouldn't take a thread away from the others
+								e.printStackTrace();
+							}
+						}
+					}
+					catch (InterruptedException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+			
+			renderingThread.setDaemon(true);
+			renderingThread.start();
+		}
+	}
+	
+	
+	
+	/**
+	 * @return the scheduler shared by the whole application
+	 */
+	public static synchronized RenderScheduler getShared()
+	{
+		if (shared == null)
+			shared = new RenderScheduler(NUM_THREADS);
+		return shared;
+	}
+	
+	
+	
+	/**
+	 * Adds a fractal to the scheduler. Its chunks aren't rendered until wakeUp
+	 * is called on the returned Session, so the fractal can finish setting itself up first.
+	 * @param fractal the fractal whose chunks should be rendered
+	 * @param weight the share of the threads that the fractal gets, relative to the other Sessions
+	 * @return the new Session
+	 */
+	public Session register(Renderer fractal, int weight)
+	{
+		Session session = new Session(fractal, weight);
+		locker.lock();
+		sessions.add(session);
+		locker.unlock();
+		return session;
+	}
+	
+	
+	
+	/**
+	 * Waits for a Session with work, and then renders one of its chunks.
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void renderNextChunk() throws InterruptedException
+	{
+		locker.lock();
+		Session session;
+		while ((session = pickSession()) == null)
+			workAvailable.await();
+		session.chunksInProgress++;
+		int wakeUps = session.wakeUps;
+		locker.unlock();
+		
+		long startTime = System.nanoTime();
+		boolean rendered = false;
+		try
+		{
+			rendered = session.fractal.renderNextChunk();
+		}
+		finally
+		{
+			long elapsedNanos = System.nanoTime() - startTime;
+			locker.lock();
+			session.chunksInProgress--;
+			if (rendered)
+				session.virtualTime += elapsedNanos / (double)session.weight;
+			else if (wakeUps == session.wakeUps)
+				session.idle = true; //the queue was empty, and no new work arrived since
+			chunkFinished.signalAll();
+			locker.unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * The locker must be held when this is called.
+	 * @return the Session with work that has had the least time for its weight, or null if none have work
+	 */
+	private Session pickSession()
+	{
+		Session next = null;
+		for (Session session : sessions)
+			if (!session.idle && (next == null || session.virtualTime < next.virtualTime))
+				next = session;
+		return next;
+	}
+	
+	
+	
+	/**
+	 * The locker must be held when this is called.
+	 * @return the least time for its weight of any Session with work, or 0 if none have work
+	 */
+	private double getMinVirtualTime()
+	{
+		Session next = pickSession();
+		return next == null ? 0 : next.virtualTime;
+	}
+	
+	
+	
+	/**
+	 * Anything whose rendering is split into small pieces of work (chunks)
+	 * that the threads can take one at a time.
+	 */
+	public interface Renderer
+	{
+		/**
+		 * Renders the next chunk, returning immediately if there is no work to be done.
+		 * This is called by any of the threads, so it must be thread-safe.
+		 * @return true if a chunk was rendered, false if there was nothing to do
+		 */
+		boolean renderNextChunk();
+	}
+	
+	
+	
+	/**
+	 * The connection between one fractal and the scheduler.
+	 */
+	public class Session
+	{
+		private final Renderer fractal;
+		private int weight; //the share of the threads, relative to the other Sessions
+		private double virtualTime; //the nanoseconds spent on this Session's chunks, divided by its weight
+		private int chunksInProgress; //the chunks being rendered by the threads right now
+		private int wakeUps; //incremented every time new work arrives
+		private boolean idle = true; //true if the fractal had no chunks left the last time it was asked
+		private boolean closed;
+		
+		
+		private Session(Renderer fractal, int weight)
+		{
+			this.fractal = fractal;
+			this.weight = Math.max(1, weight);
+		}
+		
+		
+		
+		/**
+		 * Tells the scheduler that the fractal has new chunks to render.
+		 * This has no effect once the Session is closed.
+		 */
+		public void wakeUp()
+		{
+			locker.lock();
+			if (!closed)
+			{
+				if (idle)
+					virtualTime = Math.max(virtualTime, getMinVirtualTime()); //no credit for the time spent idle
+				idle = false;
+				wakeUps++;
+				workAvailable.signalAll();
+			}
+			locker.unlock();
+		}
+		
+		
+		
+		/**
+		 * Changes the share of the threads that the fractal gets.
+		 * @param newWeight the share relative to the other Sessions, at least 1
+		 */
+		public void setWeight(int newWeight)
+		{
+			locker.lock();
+			weight = Math.max(1, newWeight);
+			locker.unlock();
+		}
+		
+		
+		
+		/**
+		 * Removes the fractal from the scheduler, and then waits for any of its
+		 * chunks that are being rendered to finish. Once this returns, the
+		 * scheduler never touches the fractal again.
+		 */
+		public void close()
+		{
+			locker.lock();
+			closed = true;
+			idle = true;
+			sessions.remove(this);
+			try
+			{
+				while (chunksInProgress > 0)
+					chunkFinished.await();
+			}
+			catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				locker.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+
+package mandelbrotfractal2;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The surface that a Fractal is rendered onto. Every pixel holds two values:
+ * the packed RGB color that is displayed, and the (smooth) iteration value
+ * that the color was derived from, which allows the image to be recolored or
+ * analyzed later without computing the fractal again.
+ * Pixels may be written concurrently by several rendering threads, as long as
+ * no two threads write the same pixel at the same time.
+ * @author Jesse Victors
+ */
+public abstract class RenderTarget
+{
+	protected final int width, height;
+	
+	
+	public RenderTarget(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+	}
+	
+	
+	
+	/**
+	 * Stores the given iteration value and color at the given pixel.
+	 * @param x the column of the pixel
+	 * @param y the row of the pixel
+	 * @param iterations the smooth iteration value for the pixel
+	 * @param rgb the packed RGB color of the pixel
+	 */
+	public abstract void setPixel(int x, int y, float iterations, int rgb);
+	
+	
+	
+	/**
+	 * @return the packed RGB color of the given pixel
+	 */
+	public abstract int getRGB(int x, int y);
+	
+	
+	
+	/**
+	 * @return the smooth iteration value of the given pixel
+	 */
+	public abstract float getIterations(int x, int y);
+	
+	
+	
+	/**
+	 * Fills the given rectangle of pixels with a single iteration value and color.
+	 * The rectangle is clipped to the bounds of this target.
+	 */
+	public void fill(int x, int y, int w, int h, float iterations, int rgb)
+	{
+		int maxX = Math.min(width, x + w), maxY = Math.min(height, y + h);
+		for (int row = Math.max(0, y); row < maxY; row++)
+			for (int col = Math.max(0, x); col < maxX; col++)
+				setPixel(col, row, iterations, rgb);
+	}
+	
+	
+	
+	/**
+	 * Copies the packed RGB colors of one row into the given array.
+	 * @param y the row to read
+	 * @param rgbRow the array to copy into, at least getWidth() long
+	 */
+	public void getRow(int y, int[] rgbRow)
+	{
+		for (int x = 0; x < width; x++)
+			rgbRow[x] = getRGB(x, y);
+	}
+	
+	
+	
+	/**
+	 * Moves the pixels of this target, so that each pixel takes the value of the pixel dx columns
+	 * to its right and dy rows below it (negative offsets move the other way). Pixels whose source
+	 * would be outside of this target are left as they were. No copy of the target is made.
+	 * @param dx the number of columns to move the pixels to the left
+	 * @param dy the number of rows to move the pixels up
+	 */
+	public void shift(int dx, int dy)
+	{
+		int minX = Math.max(0, -dx), maxX = Math.min(width, width - dx); //the columns whose source is inside
+		if ((dx == 0 && dy == 0) || minX >= maxX)
+			return;
+		
+		int[] rgbRow = new int[width], sourceRGBRow = new int[width];
+		float[] iterationsRow = new float[width], sourceIterationsRow = new float[width];
+		for (int j = 0; j < height; j++)
+		{
+			int y = dy > 0 ? j : height - 1 - j; //so each row is read before it is overwritten
+			if (y + dy < 0 || y + dy >= height)
+				continue;
+			
+			getRow(y + dy, sourceRGBRow);
+			getIterationsRow(y + dy, sourceIterationsRow);
+			getRow(y, rgbRow);
+			getIterationsRow(y, iterationsRow);
+			System.arraycopy(sourceRGBRow, minX + dx, rgbRow, minX, maxX - minX);
+			System.arraycopy(sourceIterationsRow, minX + dx, iterationsRow, minX, maxX - minX);
+			setRow(y, iterationsRow, rgbRow);
+		}
+	}
+	
+	
+	
+	/**
+	 * Stores the given iteration values and colors in one row.
+	 * @param y the row to write
+	 * @param iterationsRow the smooth iteration values, at least getWidth() long
+	 * @param rgbRow the packed RGB colors, at least getWidth() long
+	 */
+	public void setRow(int y, float[] iterationsRow, int[] rgbRow)
+	{
+		for (int x = 0; x < width; x++)
+			setPixel(x, y, iterationsRow[x], rgbRow[x]);
+	}
+	
+	
+	
+	/**
+	 * Copies the iteration values of one row into the given array.
+	 * @param y the row to read
+	 * @param iterationsRow the array to copy into, at least getWidth() long
+	 */
+	public void getIterationsRow(int y, float[] iterationsRow)
+	{
+		for (int x = 0; x < width; x++)
+			iterationsRow[x] = getIterations(x, y);
+	}
+	
+	
+	
+	/**
+	 * @return an image that can be drawn to the screen, or null if this target
+	 * lives outside of the Java heap and is not meant to be displayed directly.
+	 */
+	public BufferedImage getImage()
+	{
+		return null;
+	}
+	
+	
+	
+	/**
+	 * Encodes this target as a PNG image, one row at a time,
+	 * so that no full copy of the image is ever made on the heap.
+	 * @param out the stream to write to. It is not closed by this method.
+	 * @throws IOException if the stream could not be written to
+	 */
+	public void writePng(OutputStream out) throws IOException
+	{
+		PngEncoder encoder = new PngEncoder(out, width, height);
+		int[] rgbRow = new int[width];
+		for (int y = 0; y < height; y++)
+		{
+			getRow(y, rgbRow);
+			encoder.writeRow(rgbRow);
+		}
+		encoder.finish();
+	}
+	
+	
+	
+	/**
+	 * Releases any resources held outside of the Java heap.
+	 * The target must not be used afterwards.
+	 */
+	public void close()
+	{ }
+	
+	
+	
+	public final int getWidth()
+	{
+		return width;
+	}
+	
+	
+	
+	public final int getHeight()
+	{
+		return height;
+	}
+}